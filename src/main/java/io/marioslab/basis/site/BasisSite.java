@@ -3,7 +3,28 @@ package io.marioslab.basis.site;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.esotericsoftware.minlog.Log;
 
@@ -11,40 +32,213 @@ import io.marioslab.basis.arguments.Argument;
 import io.marioslab.basis.arguments.ArgumentWithValue.StringArgument;
 import io.marioslab.basis.arguments.Arguments;
 import io.marioslab.basis.arguments.Arguments.ParsedArguments;
+import io.marioslab.basis.site.SiteGenerator.SiteGeneratorCallback;
 import io.marioslab.basis.site.SiteGenerator.SiteGeneratorException;
+import io.marioslab.basis.site.processors.FeedStage;
+import io.marioslab.basis.site.processors.HighlightFileProcessor;
+import io.marioslab.basis.site.processors.ImageFileProcessor;
+import io.marioslab.basis.site.processors.ImageFileProcessor.ImageFunctionProvider;
+import io.marioslab.basis.site.processors.SearchIndexStage;
+import io.marioslab.basis.site.processors.SitemapStage;
+import io.marioslab.basis.site.processors.TemplateCache;
 import io.marioslab.basis.site.processors.TemplateFileProcessor;
 import io.marioslab.basis.site.processors.TemplateFileProcessor.BuiltinFunctionProvider;
+import io.marioslab.basis.site.processors.TemplateFileProcessor.VariableProvider;
 import io.methvin.watcher.DirectoryWatcher;
 import org.slf4j.helpers.NOPLogger;
 
 /** Command line application for generating static websites. See <a href="https://github.com/badlogic/basis-site">the
- * documentation</a>. **/
+ * documentation</a>. A basis site can generate multiple sites, e.g. localized variants of the same site, concurrently in one
+ * process. The sites share parsed templates, resized images, unmodified output files and worker threads. **/
 public class BasisSite {
-	private final SiteGenerator generator;
+	private final List<SiteGenerator> generators;
 	private final boolean watch;
 	private final boolean deleteOutputDirectory;
+	private final TemplateCache templateCache;
+	private final SharedOutputFiles sharedOutputFiles;
+	/** The output directories of the shards to merge, or null if the sites are generated. **/
+	private final List<File> mergeDirectories;
+	/** The data files of the sites and the providers their data is passed to the templates by, re-read on every re-generation in
+	 * watch mode. **/
+	private final Map<File, List<VariableProvider>> dataFiles = new LinkedHashMap<File, List<VariableProvider>>();
+	/** Files changed in watch mode that haven't been re-generated yet, guarded by synchronizing on the set. **/
+	private final Set<File> changedFiles = new LinkedHashSet<File>();
+	private boolean rebuilding;
+	private ExecutorService siteExecutor;
 
 	/** Constructs a basis site from {@link ParsedArguments} as created by {@link #createDefaultArguments()}. Throws a
 	 * {@link SiteGeneratorException} if the arguments are invalid. **/
 	public BasisSite (ParsedArguments args) {
 		watch = args.has("-w");
 		deleteOutputDirectory = args.has("-d");
-		File inputDirectory = new File((String)args.getValue("-i"));
-		File outputDirectory = new File((String)args.getValue("-o"));
 		if (args.has("-v")) Log.set(Log.LEVEL_DEBUG);
 
-		if (!inputDirectory.exists()) {
-			throw new SiteGeneratorException("Input directory " + inputDirectory.getPath() + " does not exist.");
+		List<SiteDefinition> sites;
+		if (args.has("-merge")) {
+			if (!args.has("-o") || args.has("-m") || args.has("-shard") || watch)
+				throw new SiteGeneratorException("-merge requires -o, and can't be combined with -m, -shard or -w.");
+			mergeDirectories = new ArrayList<File>();
+			for (String directory : ((String)args.getValue("-merge")).split(","))
+				mergeDirectories.add(new File(directory.trim()));
+			sites = Arrays.asList(new SiteDefinition(new File(args.has("-i") ? (String)args.getValue("-i") : "."), new File((String)args.getValue("-o")), null));
+		} else if (args.has("-m")) {
+			mergeDirectories = null;
+			sites = readSites(new File((String)args.getValue("-m")));
+		} else if (args.has("-i") && args.has("-o")) {
+			mergeDirectories = null;
+			sites = Arrays.asList(new SiteDefinition(new File((String)args.getValue("-i")), new File((String)args.getValue("-o")), null));
+		} else {
+			throw new SiteGeneratorException("Either -m, or -i and -o must be given.");
+		}
+
+		File cacheDirectory = new File(args.has("-c") ? (String)args.getValue("-c") : ".basis-site-cache");
+		int[] imageWidths = args.has("-r") ? parseWidths((String)args.getValue("-r")) : new int[0];
+		int[] shard = args.has("-shard") ? parseShard((String)args.getValue("-shard")) : null;
+		if (shard != null && watch) throw new SiteGeneratorException("-shard can't be combined with -w.");
+		ExecutorService workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), (Runnable runnable) -> {
+			Thread thread = new Thread(runnable, "BasisSite worker");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		templateCache = new TemplateCache();
+		sharedOutputFiles = sites.size() > 1 ? new SharedOutputFiles() : null;
+		HighlightFileProcessor highlightProcessor = args.has("-l") ? new HighlightFileProcessor(new File(cacheDirectory, "highlight")) : null;
+		generators = new ArrayList<SiteGenerator>();
+		for (SiteDefinition site : sites) {
+			if (!site.inputDirectory.exists()) {
+				throw new SiteGeneratorException("Input directory " + site.inputDirectory.getPath() + " does not exist.");
+			}
+
+			if (!site.outputDirectory.exists()) {
+				if (!site.outputDirectory.mkdirs()) {
+					throw new SiteGeneratorException("Couldn't create output directory " + site.outputDirectory.getPath() + ".");
+				}
+			}
+
+			ImageFileProcessor imageProcessor = new ImageFileProcessor(new File(cacheDirectory, "images"), imageWidths, 0.85f, workers);
+			SiteGenerator generator = new SiteGenerator(site.inputDirectory, site.outputDirectory);
+			generator.setSharedOutputFiles(sharedOutputFiles);
+			VariableProvider dataProvider = new VariableProvider(Collections.singletonMap("data", readData(site.dataFile)));
+			if (site.dataFile != null) dataFiles.computeIfAbsent(normalize(site.dataFile), (File file) -> new ArrayList<VariableProvider>()).add(dataProvider);
+			generator.addProcessor(new TemplateFileProcessor(Arrays.asList(new BuiltinFunctionProvider(generator),
+				new ImageFunctionProvider(imageProcessor), dataProvider), templateCache, workers));
+			if (highlightProcessor != null) generator.addProcessor(highlightProcessor);
+			generator.addProcessor(imageProcessor);
+			if (shard != null) generator.setShard(shard[0], shard[1]);
+			if (args.has("-s")) generator.addPostBuildStage(new SearchIndexStage());
+			if (args.has("-u")) {
+				String baseUrl = (String)args.getValue("-u");
+				String title = args.has("-title") ? (String)args.getValue("-title") : baseUrl;
+				String author = args.has("-author") ? (String)args.getValue("-author") : title;
+				generator.addPostBuildStage(new SitemapStage(baseUrl));
+				generator.addPostBuildStage(new FeedStage(baseUrl, title, author, 20));
+			}
+			generators.add(generator);
 		}
+	}
+
+	private static int[] parseWidths (String widths) {
+		String[] tokens = widths.split(",");
+		int[] result = new int[tokens.length];
+		for (int i = 0; i < tokens.length; i++) {
+			try {
+				result[i] = Integer.parseInt(tokens[i].trim());
+			} catch (NumberFormatException e) {
+				throw new SiteGeneratorException("Invalid image width " + tokens[i] + ", expected a comma separated list of widths.");
+			}
+			if (result[i] <= 0) throw new SiteGeneratorException("Invalid image width " + tokens[i] + ", expected a positive number.");
+		}
+		return result;
+	}
 
-		if (!outputDirectory.exists()) {
-			if (!outputDirectory.mkdirs()) {
-				throw new SiteGeneratorException("Couldn't create output directory " + outputDirectory.getPath() + ".");
+	/** Parses a shard given as <code>&lt;index&gt;/&lt;count&gt;</code>, with the index starting at 1, and returns the index
+	 * starting at 0 and the count. **/
+	private static int[] parseShard (String shard) {
+		String[] tokens = shard.split("/");
+		if (tokens.length == 2) {
+			try {
+				int index = Integer.parseInt(tokens[0].trim());
+				int count = Integer.parseInt(tokens[1].trim());
+				if (count >= 1 && index >= 1 && index <= count) return new int[] {index - 1, count};
+			} catch (NumberFormatException e) {
+				// Fall through
 			}
 		}
+		throw new SiteGeneratorException("Invalid shard " + shard + ", expected <index>/<count>, e.g. 1/4.");
+	}
+
+	/** The input and output directory, and optional data file of a site given on the command line. **/
+	private static class SiteDefinition {
+		final File inputDirectory;
+		final File outputDirectory;
+		final File dataFile;
+
+		SiteDefinition (File inputDirectory, File outputDirectory, File dataFile) {
+			this.inputDirectory = inputDirectory;
+			this.outputDirectory = outputDirectory;
+			this.dataFile = dataFile;
+		}
+	}
+
+	/** Reads the sites to generate from a properties file. Each site is defined by a <code>&lt;name&gt;.input</code> and
+	 * <code>&lt;name&gt;.output</code> directory, and an optional <code>&lt;name&gt;.data</code> properties file. Relative paths
+	 * are resolved against the directory of the sites file. **/
+	private static List<SiteDefinition> readSites (File sitesFile) {
+		Properties properties = readProperties(sitesFile);
+		Set<String> names = new TreeSet<String>();
+		for (String key : properties.stringPropertyNames()) {
+			if (key.endsWith(".input") || key.endsWith(".output") || key.endsWith(".data"))
+				names.add(key.substring(0, key.lastIndexOf('.')));
+			else
+				throw new SiteGeneratorException("Unknown key " + key + " in sites file " + sitesFile.getPath() + ".");
+		}
+		if (names.isEmpty()) throw new SiteGeneratorException("Sites file " + sitesFile.getPath() + " doesn't define any sites.");
+
+		Path base = sitesFile.getAbsoluteFile().getParentFile().toPath();
+		List<SiteDefinition> sites = new ArrayList<SiteDefinition>();
+		for (String name : names) {
+			String input = properties.getProperty(name + ".input");
+			String output = properties.getProperty(name + ".output");
+			String data = properties.getProperty(name + ".data");
+			if (input == null || output == null)
+				throw new SiteGeneratorException("Site " + name + " in sites file " + sitesFile.getPath() + " needs an input and output directory.");
+			sites.add(new SiteDefinition(base.resolve(input).toFile(), base.resolve(output).toFile(), data == null ? null : base.resolve(data).toFile()));
+		}
+		return sites;
+	}
+
+	/** Reads the data of a site from a properties file, or returns an empty map if no file is given. **/
+	private static Map<String, Object> readData (File dataFile) {
+		Map<String, Object> data = new HashMap<String, Object>();
+		if (dataFile == null) return data;
+		Properties properties = readProperties(dataFile);
+		for (String key : properties.stringPropertyNames())
+			data.put(key, properties.getProperty(key));
+		return data;
+	}
+
+	/** Re-reads the data files of the sites, so changes to them are picked up by the next re-generation. **/
+	private void reloadData () {
+		for (Map.Entry<File, List<VariableProvider>> entry : dataFiles.entrySet()) {
+			Map<String, Object> data = Collections.singletonMap("data", readData(entry.getKey()));
+			for (VariableProvider provider : entry.getValue())
+				provider.setVariables(data);
+		}
+	}
 
-		generator = new SiteGenerator(inputDirectory, outputDirectory);
-		generator.addProcessor(new TemplateFileProcessor(Arrays.asList(new BuiltinFunctionProvider(generator))));
+	private static File normalize (File file) {
+		return file.toPath().toAbsolutePath().normalize().toFile();
+	}
+
+	private static Properties readProperties (File file) {
+		try (InputStream in = Files.newInputStream(file.toPath()); Reader reader = new InputStreamReader(in, "UTF-8")) {
+			Properties properties = new Properties();
+			properties.load(reader);
+			return properties;
+		} catch (IOException e) {
+			throw new SiteGeneratorException("Couldn't read properties file " + file.getPath() + ".", e);
+		}
 	}
 
 	/** Constructs a new basis site.
@@ -52,9 +246,20 @@ public class BasisSite {
 	 * @param watch Whether to watch the input directory for changes.
 	 * @param deleteOutputDirectory Whether to delete the output directory before (re-)generating from the input. */
 	public BasisSite (SiteGenerator generator, boolean watch, boolean deleteOutputDirectory) {
-		this.generator = generator;
+		this(Arrays.asList(generator), watch, deleteOutputDirectory);
+	}
+
+	/** Constructs a new basis site generating multiple sites concurrently.
+	 * @param generators The {@link SiteGenerator} instances to use to generate the sites.
+	 * @param watch Whether to watch the input directories for changes.
+	 * @param deleteOutputDirectory Whether to delete the output directories before (re-)generating from the input. */
+	public BasisSite (List<SiteGenerator> generators, boolean watch, boolean deleteOutputDirectory) {
+		this.generators = new ArrayList<SiteGenerator>(generators);
 		this.watch = watch;
 		this.deleteOutputDirectory = deleteOutputDirectory;
+		this.templateCache = null;
+		this.sharedOutputFiles = null;
+		this.mergeDirectories = null;
 	}
 
 	private static void deleteFile (File file, boolean first) {
@@ -72,7 +277,7 @@ public class BasisSite {
 		}
 	}
 
-	private void deleteAndCreateOutput () {
+	private static void deleteAndCreateOutput (SiteGenerator generator) {
 		File output = generator.getOutputDirectory();
 		Log.info("Deleting output directory " + output.getPath() + ".");
 		deleteFile(output, true);
@@ -82,23 +287,33 @@ public class BasisSite {
 		}
 	}
 
-	/** Adds a {@link SiteFileProcessor} to this generator. The processors will be applied to input files in the order they have
-	 * been added. **/
+	/** Adds a {@link SiteFileProcessor} to the generators. The processors will be applied to input files in the order they have
+	 * been added. When generating multiple sites, the processor is shared by all sites, and must support processing files of
+	 * multiple sites concurrently. A {@link TemplateFileProcessor} can't be shared, add one per site to the generators returned by
+	 * {@link #getGenerators()} instead. **/
 	public synchronized void addProcessor (SiteFileProcessor processor) {
-		generator.addProcessor(processor);
+		for (SiteGenerator generator : generators)
+			generator.addProcessor(processor);
 	}
 
 	/** Replaces the SiteFileProcessor of the same class with the provided processor, or appends it at the end of the procesor
-	 * list. */
+	 * list. When generating multiple sites, the processor is shared by all sites, see {@link #addProcessor(SiteFileProcessor)}. */
 	public synchronized void replaceProcessor (SiteFileProcessor processor) {
-		generator.replaceProcessor(processor);
+		for (SiteGenerator generator : generators)
+			generator.replaceProcessor(processor);
 	}
 
-	/** Returns the {@link SiteGenerator}. Use the {@link #addProcessor(SiteFileProcessor)} and
-	 * {@link #replaceProcessor(SiteFileProcessor)} methods to modify it for thread-safety. This method only exists as some
-	 * {@link SiteFileProcessor} instances may require a generator to be constructed. */
+	/** Returns the {@link SiteGenerator}, or the generator of the first site if multiple sites are generated. Use the
+	 * {@link #addProcessor(SiteFileProcessor)} and {@link #replaceProcessor(SiteFileProcessor)} methods to modify it for
+	 * thread-safety. This method only exists as some {@link SiteFileProcessor} instances may require a generator to be
+	 * constructed. */
 	public SiteGenerator getGenerator () {
-		return generator;
+		return generators.get(0);
+	}
+
+	/** Returns the {@link SiteGenerator} instances of all sites. See {@link #getGenerator()}. **/
+	public List<SiteGenerator> getGenerators () {
+		return Collections.unmodifiableList(generators);
 	}
 
 	/** Generates the output from the input and optionally enters a loop that watches for input folder changes and re-generates the
@@ -109,16 +324,25 @@ public class BasisSite {
 	}
 
 	/** Generates the output from the input and optionally enters a loop that watches for input folder changes and re-generates the
-	 * site. Calls the Runnable after each successful re-generation. **/
+	 * site. Calls the Runnable after each successful re-generation. In watch mode, a change cancels a re-generation in progress.
+	 * Changed files are re-generated first, and the Runnable is called as soon as they have been written, while the rest of the
+	 * site is re-generated in the background. If the output directory is deleted before each re-generation, the Runnable is
+	 * called once the whole site has been re-generated instead, as the output is incomplete until then. **/
 	public synchronized void generate (Runnable callback) {
-		if (deleteOutputDirectory) deleteAndCreateOutput();
+		if (mergeDirectories != null) {
+			long start = System.nanoTime();
+			SiteGenerator generator = generators.get(0);
+			if (deleteOutputDirectory) deleteAndCreateOutput(generator);
+			generator.merge(mergeDirectories);
+			Log.info("Merging shards took: " + String.format("%.2f", (System.nanoTime() - start) / 1000000000f) + " secs");
+			callback.run();
+			return;
+		}
 
 		if (watch) {
 			long start = System.nanoTime();
 			try {
-				generator.generate( (file) -> {
-					Log.info("Processed " + file.getInput().getPath() + " -> " + file.getOutput().getPath());
-				});
+				generateSites(null, null);
 				callback.run();
 			} catch (Throwable t) {
 				Log.error(t.getMessage());
@@ -126,43 +350,194 @@ public class BasisSite {
 			}
 
 			Log.info("Generating output took: " + String.format("%.2f", (System.nanoTime() - start) / 1000000000f) + " secs");
-			Log.info("Watching input directory " + generator.getInputDirectory().getPath());
+			logWatching();
+
+			// Changes are collected by the watcher and processed by a separate thread, so a change arriving
+			// during a re-generation can cancel it instead of queuing up behind it.
+			Thread rebuilder = new Thread( () -> {
+				while (true) {
+					List<File> changed;
+					synchronized (changedFiles) {
+						while (changedFiles.isEmpty()) {
+							try {
+								changedFiles.wait();
+							} catch (InterruptedException e) {
+								return;
+							}
+						}
+						changed = new ArrayList<File>(changedFiles);
+						changedFiles.clear();
+						rebuilding = true;
+					}
+					rebuild(changed, callback);
+					synchronized (changedFiles) {
+						rebuilding = false;
+					}
+				}
+			}, "BasisSite rebuilder");
+			rebuilder.setDaemon(true);
+			rebuilder.start();
+
 			try {
+				// The data files may be outside of the input directories, e.g. next to the output directories. Only
+				// changes to the data files themselves are picked up there.
+				Set<Path> inputDirectories = new LinkedHashSet<Path>();
+				for (SiteGenerator generator : generators)
+					inputDirectories.add(normalize(generator.getInputDirectory()).toPath());
+				Set<Path> watchedDirectories = new LinkedHashSet<Path>(inputDirectories);
+				for (File dataFile : dataFiles.keySet())
+					watchedDirectories.add(dataFile.getParentFile().toPath());
 				DirectoryWatcher watcher = DirectoryWatcher.builder()
-						.path(generator.getInputDirectory().toPath())
+						.paths(new ArrayList<Path>(watchedDirectories))
 						.listener((event) -> {
-							long startInner = System.nanoTime();
-							try {
-								if (deleteOutputDirectory) deleteAndCreateOutput();
-								generator.generate( (file) -> {
-									Log.info("Processed " + file.getInput().getPath() + " -> " + file.getOutput().getPath());
-								});
-								callback.run();
-							} catch (Throwable t) {
-								Log.error(t.getMessage());
-								Log.debug("Exception", t);
+							Path path = event.path().toAbsolutePath().normalize();
+							if (!dataFiles.containsKey(path.toFile()) && !isInDirectory(path, inputDirectories)) return;
+							synchronized (changedFiles) {
+								changedFiles.add(event.path().toFile());
+								if (rebuilding) {
+									for (SiteGenerator generator : generators)
+										generator.cancel();
+								}
+								changedFiles.notifyAll();
 							}
-							Log.info("Generating output took: " + String.format("%.2f", (System.nanoTime() - startInner) / 1000000000f) + " secs");
-							Log.info("Watching input directory " + generator.getInputDirectory().getPath());
 						}).build();
 				watcher.watch();
 			} catch (IOException e) {
 				throw new RuntimeException(e);
+			} finally {
+				rebuilder.interrupt();
 			}
 		} else {
-			generator.generate( (file) -> {
-				long start = System.nanoTime();
-				Log.info("Processed " + file.getInput().getPath() + " -> " + file.getOutput().getPath());
-				Log.info("Generating output took: " + String.format("%.2f", (System.nanoTime() - start) / 1000000000f) + " secs");
-			});
+			long start = System.nanoTime();
+			generateSites(null, null);
+			Log.info("Generating output took: " + String.format("%.2f", (System.nanoTime() - start) / 1000000000f) + " secs");
 			callback.run();
 		}
 	}
 
+	private static boolean isInDirectory (Path path, Set<Path> directories) {
+		for (Path directory : directories) {
+			if (path.startsWith(directory)) return true;
+		}
+		return false;
+	}
+
+	/** Re-generates the sites after the files have changed in watch mode. The changed files are generated first, and the callback
+	 * is called as soon as they have been written, or after the whole site has been generated if the output directory is
+	 * deleted. If the re-generation is cancelled by further changes, the changed files are put back so they are generated first
+	 * by the next re-generation. **/
+	private void rebuild (List<File> changed, Runnable callback) {
+		long start = System.nanoTime();
+		try {
+			reloadData();
+			if (deleteOutputDirectory) {
+				generateSites(changed, null);
+				callback.run();
+			} else {
+				generateSites(changed, () -> {
+					Log.info("Generating changed files took: " + String.format("%.2f", (System.nanoTime() - start) / 1000000000f) + " secs");
+					callback.run();
+				});
+			}
+		} catch (CancellationException e) {
+			Log.info("Re-generation cancelled due to new changes.");
+			synchronized (changedFiles) {
+				changedFiles.addAll(changed);
+			}
+			return;
+		} catch (Throwable t) {
+			Log.error(t.getMessage());
+			Log.debug("Exception", t);
+		}
+		Log.info("Generating output took: " + String.format("%.2f", (System.nanoTime() - start) / 1000000000f) + " secs");
+		logWatching();
+	}
+
+	/** Generates all sites concurrently and waits for them to complete. If changed files are given, the sites are re-generated
+	 * via {@link SiteGenerator#rebuild(List, Runnable, SiteGeneratorCallback)}, and the callback is called once the changed
+	 * files of all sites have been written. Throws the first exception thrown by any of the sites. **/
+	private void generateSites (List<File> changed, Runnable changedCallback) {
+		if (templateCache != null) templateCache.clear();
+		if (sharedOutputFiles != null) sharedOutputFiles.clear();
+
+		SiteGeneratorCallback logFile = (file) -> {
+			Log.info("Processed " + file.getInput().getPath() + " -> " + file.getOutput().getPath());
+		};
+		if (generators.size() == 1) {
+			generateSite(generators.get(0), changed, changedCallback, logFile);
+			return;
+		}
+
+		if (siteExecutor == null) {
+			siteExecutor = Executors.newFixedThreadPool(Math.min(generators.size(), Runtime.getRuntime().availableProcessors()),
+				(Runnable runnable) -> {
+					Thread thread = new Thread(runnable, "BasisSite site");
+					thread.setDaemon(true);
+					return thread;
+				});
+		}
+		AtomicInteger remaining = new AtomicInteger(generators.size());
+		Runnable siteChangedCallback = () -> {
+			if (remaining.decrementAndGet() == 0 && changedCallback != null) changedCallback.run();
+		};
+		List<Future<?>> sites = new ArrayList<Future<?>>();
+		for (SiteGenerator generator : generators) {
+			sites.add(siteExecutor.submit( () -> {
+				generateSite(generator, changed, siteChangedCallback, logFile);
+			}));
+		}
+
+		RuntimeException error = null;
+		for (Future<?> site : sites) {
+			try {
+				site.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SiteGeneratorException("Interrupted while generating sites.", e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				RuntimeException siteError = cause instanceof RuntimeException ? (RuntimeException)cause
+					: new SiteGeneratorException("Couldn't generate site.", cause);
+				if (error == null || error instanceof CancellationException) error = siteError;
+			}
+		}
+		if (error != null) throw error;
+	}
+
+	private void generateSite (SiteGenerator generator, List<File> changed, Runnable changedCallback, SiteGeneratorCallback callback) {
+		if (deleteOutputDirectory) deleteAndCreateOutput(generator);
+		if (changed == null)
+			generator.generate(Collections.<File> emptyList(), changedCallback, callback);
+		else
+			generator.rebuild(changed, changedCallback, callback);
+	}
+
+	private void logWatching () {
+		for (SiteGenerator generator : generators)
+			Log.info("Watching input directory " + generator.getInputDirectory().getPath());
+		for (File dataFile : dataFiles.keySet())
+			Log.info("Watching data file " + dataFile.getPath());
+	}
+
 	public static Arguments createDefaultArguments () {
 		Arguments args = new Arguments();
-		args.addArgument(new StringArgument("-i", "The directory to read the source files from.", "<input-directory>", false));
-		args.addArgument(new StringArgument("-o", "The directory to write the output files to.", "<input-directory>", false));
+		args.addArgument(new StringArgument("-i", "The directory to read the source files from.", "<input-directory>", true));
+		args.addArgument(new StringArgument("-o", "The directory to write the output files to.", "<input-directory>", true));
+		args.addArgument(new StringArgument("-m", "A properties file defining multiple sites to\ngenerate, instead of -i and -o.",
+			"<sites-file>", true));
+		args.addArgument(new StringArgument("-c", "The directory to cache generated files in,\ndefaults to .basis-site-cache.",
+			"<cache-directory>", true));
+		args.addArgument(new StringArgument("-r", "Generate resized derivatives of JPEG and PNG\nimages in the given widths, e.g. 480,960.",
+			"<widths>", true));
+		args.addArgument(new StringArgument("-u", "The URL of the site, e.g. https://mysite.com/.\nGenerates sitemap.xml and feed.xml.",
+			"<base-url>", true));
+		args.addArgument(new StringArgument("-title", "The title of feed.xml, defaults to the URL of\nthe site.", "<title>", true));
+		args.addArgument(new StringArgument("-author", "The author of feed.xml, defaults to the title.", "<name>", true));
+		args.addArgument(new Argument("-s", "Generate a search index in search/.", true));
+		args.addArgument(new Argument("-l", "Highlight code blocks in the generated pages.", true));
+		args.addArgument(new StringArgument("-shard", "Only generate shard <index> of <count> shards\nof the site, e.g. 1/4.", "<index/count>", true));
+		args.addArgument(new StringArgument("-merge", "Merge the comma separated output directories\nof all shards into the output directory.",
+			"<shard-directories>", true));
 		args.addArgument(new Argument("-d", "Delete the output directory.", true));
 		args.addArgument(new Argument("-w", "Watch the input directory for changes and\nregenerate the site.", true));
 		args.addArgument(new Argument("-v", "Verbosely log everything.", true));
@@ -0,0 +1,101 @@
+
+package io.marioslab.basis.site;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.marioslab.basis.site.SiteGenerator.SiteGeneratorException;
+
+/** The files generated by a shard of a build, written to the shard's output directory as {@link SiteGenerator#SHARD_MANIFEST}.
+ * For each file, the manifest stores the input and output path relative to the input and output directory, the last
+ * modification time of the input file, and the file's metadata, so the {@link SiteGenerator.PostBuildStage} instances can be run
+ * on the merged output of all shards without access to the input files. Metadata values other than strings, numbers, booleans,
+ * dates, and lists and maps thereof are not stored. **/
+class ShardManifest {
+	private static final int VERSION = 2;
+	private static final Object UNSUPPORTED = new Object();
+
+	private ShardManifest () {
+	}
+
+	/** Writes the manifest for the generated files to the output directory of the generator. **/
+	static void write (SiteGenerator generator, List<SiteFile> files) {
+		File manifest = new File(generator.getOutputDirectory(), SiteGenerator.SHARD_MANIFEST);
+		try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(manifest.toPath())))) {
+			out.writeInt(VERSION);
+			out.writeInt(files.size());
+			for (SiteFile file : files) {
+				out.writeUTF(generator.getRelativeInputPath(file.getInput()));
+				out.writeUTF(generator.getRelativeOutputPath(file.getOutput()));
+				out.writeLong(file.getLastModified());
+				Map<String, Object> metadata = new LinkedHashMap<String, Object>();
+				for (Map.Entry<String, Object> entry : file.getMetadata().entrySet()) {
+					Object value = toSerializable(entry.getValue());
+					if (value != UNSUPPORTED) metadata.put(entry.getKey(), value);
+				}
+				out.writeObject(metadata);
+				// Don't keep references to all written metadata maps
+				out.reset();
+			}
+		} catch (IOException e) {
+			throw new SiteGeneratorException("Couldn't write shard manifest " + manifest.getPath() + ".", e);
+		}
+	}
+
+	/** Reads the manifest in the shard directory, returning a {@link SiteFile} without content for each file, with the input and
+	 * output file resolved against the input and output directory of the generator. **/
+	@SuppressWarnings("unchecked")
+	static List<SiteFile> read (SiteGenerator generator, File shardDirectory) {
+		File manifest = new File(shardDirectory, SiteGenerator.SHARD_MANIFEST);
+		if (!manifest.exists()) throw new SiteGeneratorException("Shard directory " + shardDirectory.getPath() + " has no shard manifest.");
+		try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(manifest.toPath())))) {
+			if (in.readInt() != VERSION) throw new SiteGeneratorException("Shard manifest " + manifest.getPath() + " was written by an incompatible version.");
+			int count = in.readInt();
+			List<SiteFile> files = new ArrayList<SiteFile>(count);
+			for (int i = 0; i < count; i++) {
+				File input = new File(generator.getInputDirectory(), in.readUTF());
+				File output = new File(generator.getOutputDirectory(), in.readUTF());
+				long lastModified = in.readLong();
+				SiteFile file = new SiteFile(input, output, (Map<String, Object>)in.readObject());
+				file.lastModified = lastModified;
+				files.add(file);
+			}
+			return files;
+		} catch (IOException | ClassNotFoundException e) {
+			throw new SiteGeneratorException("Couldn't read shard manifest " + manifest.getPath() + ".", e);
+		}
+	}
+
+	private static Object toSerializable (Object value) {
+		if (value == null || value instanceof String || value instanceof Boolean || value instanceof Character) return value;
+		if (value instanceof Integer || value instanceof Long || value instanceof Float || value instanceof Double) return value;
+		if (value instanceof Date) return value;
+		if (value instanceof List) {
+			List<Object> list = new ArrayList<Object>();
+			for (Object item : (List<?>)value) {
+				Object serializable = toSerializable(item);
+				if (serializable != UNSUPPORTED) list.add(serializable);
+			}
+			return list;
+		}
+		if (value instanceof Map) {
+			Map<String, Object> map = new LinkedHashMap<String, Object>();
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>)value).entrySet()) {
+				Object serializable = toSerializable(entry.getValue());
+				if (serializable != UNSUPPORTED) map.put(String.valueOf(entry.getKey()), serializable);
+			}
+			return map;
+		}
+		return UNSUPPORTED;
+	}
+}
@@ -0,0 +1,50 @@
+
+package io.marioslab.basis.site;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Shares the output files of multiple sites generated from the same input directory, e.g. localized variants of a site. A file
+ * no {@link SiteFileProcessor} modified, like a stylesheet or an image, is written by the first site generating it. The other
+ * sites hard-link their output file to it instead of writing the same content again, falling back to writing it if the file
+ * system doesn't support hard links. Set on each {@link SiteGenerator} via
+ * {@link SiteGenerator#setSharedOutputFiles(SharedOutputFiles)}. Must be cleared via {@link #clear()} before each build. Safe to
+ * use from multiple threads. **/
+public class SharedOutputFiles {
+	/** The first output file written for each unmodified input file by normalized absolute path. **/
+	private final Map<File, File> outputs = new ConcurrentHashMap<File, File>();
+
+	/** Writes the content of the file to its output file. Output files are always replaced instead of modified, as they may be
+	 * hard links to the output files of other sites.
+	 * @param unmodified whether the content is the unmodified content of the input file. */
+	void write (SiteFile file, boolean unmodified) throws IOException {
+		Path output = file.getOutput().toPath();
+		Files.deleteIfExists(output);
+		if (!unmodified) {
+			Files.write(output, file.getContent());
+			return;
+		}
+
+		File input = file.getInput().toPath().toAbsolutePath().normalize().toFile();
+		File shared = outputs.get(input);
+		if (shared != null) {
+			try {
+				Files.createLink(output, shared.toPath());
+				return;
+			} catch (IOException | UnsupportedOperationException e) {
+				// Different file systems or no hard link support, write the file instead
+			}
+		}
+		Files.write(output, file.getContent());
+		outputs.putIfAbsent(input, file.getOutput());
+	}
+
+	/** Forgets all output files, so the next build writes them again. **/
+	public void clear () {
+		outputs.clear();
+	}
+}
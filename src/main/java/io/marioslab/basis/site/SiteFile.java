@@ -11,6 +11,13 @@ public class SiteFile {
 	private final File output;
 	private byte[] content;
 	private final Map<String, Object> metadata;
+	private boolean discarded;
+	/** The content read from the input file by the {@link SiteGenerator}, to tell whether processors modified the content. **/
+	byte[] inputContent;
+	/** The last modification time of the input file as read from a shard manifest, or -1. **/
+	long lastModified = -1;
+	/** The batch the {@link SiteGenerator} passes the file to the processors in, or null. **/
+	SiteGenerator.Batch batch;
 
 	/** Creates a new site file.
 	 * @param input the input file from which the file is read.
@@ -34,7 +41,8 @@ public class SiteFile {
 		this.metadata = new HashMap<String, Object>();
 	}
 
-	/** Returns the output file to which the final content of the file will be written by the {@link SiteGenerator}. **/
+	/** Returns the output file to which the final content of the file will be written by the {@link SiteGenerator}, or null if the
+	 * file is not written, e.g. a fragment rendered by the {@link io.marioslab.basis.site.processors.TemplateFileProcessor}. **/
 	public File getOutput () {
 		return output;
 	}
@@ -54,15 +62,33 @@ public class SiteFile {
 		return input;
 	}
 
+	/** Returns the time the input file was last modified, in milliseconds since the epoch. For the files of a merged sharded
+	 * build, returns the time recorded by the shard that generated the file, see {@link SiteGenerator#merge(java.util.List)}. **/
+	public long getLastModified () {
+		return lastModified >= 0 ? lastModified : input.lastModified();
+	}
+
 	/** Returns the metadata found in the first template code span, or an empty map if the file has no metadata. **/
 	public Map<String, Object> getMetadata () {
 		return metadata;
 	}
 
+	/** Returns whether the file has been discarded by a {@link SiteFileProcessor}. See {@link #setDiscarded(boolean)}. **/
+	public boolean isDiscarded () {
+		return discarded;
+	}
+
+	/** Sets whether the file is discarded. A discarded file is not passed to subsequent processors and not written to the
+	 * output directory, e.g. because a processor generated other files from it instead. **/
+	public void setDiscarded (boolean discarded) {
+		this.discarded = discarded;
+	}
+
 	/** Returns the output directory of this file, relative to the base output directory. E.g. if the base output directory is
-	 * "output/" and the output file is <code>output/blog/index.html</code>, this method returns <code>blog/</code>. **/
+	 * "output/" and the output file is <code>output/blog/index.html</code>, this method returns <code>blog/</code>. Returns an
+	 * empty string if the file has no output file. **/
 	public String getOutputDirectory () {
-		if (output.getParent() == null) return "";
+		if (output == null || output.getParent() == null) return "";
 		String url = output.getParent().indexOf(File.separator) >= 0 ? output.getParent().substring(output.getParent().indexOf(File.separator) + 1) : output.getParent();
 		url = url.replace(File.separatorChar, '/');
 		if (!url.endsWith("/")) url += "/";
@@ -70,8 +96,8 @@ public class SiteFile {
 	}
 
 	/** Returns the output file name. E.g. if the output file is <code>output/page/about.html</code>, this method
-	 * returns <code>about.html</code>. **/
+	 * returns <code>about.html</code>. Returns null if the file has no output file. **/
 	public String getOutputFile () {
-		return output.getName();
+		return output != null ? output.getName() : null;
 	}
 }
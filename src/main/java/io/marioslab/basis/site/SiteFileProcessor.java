@@ -1,18 +1,70 @@
 
 package io.marioslab.basis.site;
 
+import java.io.File;
+import java.util.List;
+
 import io.marioslab.basis.site.SiteGenerator.SiteGeneratorException;
 
 /** A file processor receives an input file, the output file name, the file's content, and its optional metadata as a
  * {@link SiteFile} instance. Based on this data, the file processor may modify the output file name, the content, and metadata. A
  * file processor is registered with a {@link SiteGenerator} instance via the {@link SiteGenerator#getProcessors()} method, which
- * provides the processor with the data. */
+ * provides the processor with the data. The generator informs processors about the start and end of each build via
+ * {@link #buildStarted(SiteGenerator)} and {@link #buildFinished(SiteGenerator)}, so processors can set up expensive state once
+ * per build, and write artifacts combining the results of all files at the end of a build. */
 public interface SiteFileProcessor {
 	/** Processes the file, e.g modify its content and (optional) metadata. May not modify the file, e.g. because the file type
 	 * can't be processed. Throws a {@link SiteGeneratorException} if processing a supprted file type failed. **/
 	public void process (SiteFile file);
 
+	/** Processes a group of files, e.g. the files of a directory, in the same way as {@link #process(SiteFile)}. The generator
+	 * passes each group to all processors in order, so a processor sees the results of the previous processor for all files of
+	 * the group. Processors can override this method to amortize work over multiple files, but must process the files in order,
+	 * and skip files that have been discarded in the meantime, e.g. because another file of the group requested them via
+	 * {@link SiteGenerator#getProcessedFile(File, File)} and they have been processed on their own. The default implementation
+	 * calls {@link #process(SiteFile)} for each file that hasn't been discarded, and tells the generator which file it is
+	 * processing, so the generator can report which file failed, and knows which files of the group the processor is done with
+	 * when one of them is requested. **/
+	public default void process (List<SiteFile> files) {
+		for (SiteFile file : files) {
+			if (file.isDiscarded()) continue;
+			if (file.batch != null) file.batch.current = file;
+			process(file);
+		}
+	}
+
 	/** Transforms the output file name, e.g. stripping parts, and returns the modified name. If no modification is performed, the
 	 * input is returned. **/
 	public String processOutputFileName (String fileName);
+
+	/** Called by the {@link SiteGenerator} before the first file of a build is processed. **/
+	public default void buildStarted (SiteGenerator generator) {
+	}
+
+	/** Called by the {@link SiteGenerator} after all files of a build have been processed and written successfully. Processors
+	 * that work asynchronously must wait for their work to complete before returning. Throws a {@link SiteGeneratorException} if
+	 * the processor's work failed. **/
+	public default void buildFinished (SiteGenerator generator) {
+	}
+
+	/** Returns whether the input file must be processed by every shard of a sharded build, e.g. because the processor generates
+	 * multiple files from it, which it distributes between the shards via {@link SiteGenerator#isInShard(String)} itself. See
+	 * {@link SiteGenerator#setShard(int, int)}. The default implementation returns false. **/
+	public default boolean processInAllShards (File inputFile) {
+		return false;
+	}
+
+	/** Returns whether processing the input file results in an output file of its own. Returns false if the processor discards
+	 * the file, e.g. because it generates other files from it via {@link SiteGenerator#generate(SiteFile, SiteFileProcessor)}.
+	 * The generator checks this before processing a file requested via {@link SiteGenerator#getProcessedFile(File, File)}. The
+	 * default implementation returns true. **/
+	public default boolean producesOutputFile (File inputFile) {
+		return true;
+	}
+
+	/** Called by the {@link SiteGenerator} before a re-build caused by a change to the input directory, e.g. in watch mode. The
+	 * re-build itself is reported via {@link #buildStarted(SiteGenerator)} and {@link #buildFinished(SiteGenerator)} as usual.
+	 * @param changedFiles the files and directories that have been created, modified or deleted. */
+	public default void watchRebuild (SiteGenerator generator, List<File> changedFiles) {
+	}
 }
@@ -2,9 +2,24 @@
 package io.marioslab.basis.site;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 
 import io.marioslab.basis.template.Error.TemplateException;
 
@@ -18,6 +33,23 @@ public class SiteGenerator {
 		public void generated (SiteFile file);
 	}
 
+	/** A stage run after all files have been generated, e.g. to build a search index or sitemap from the output. The generator
+	 * streams over all generated files once, reading each file's output at most once for all stages. Stages are added via
+	 * {@link SiteGenerator#addPostBuildStage(PostBuildStage)}. **/
+	public interface PostBuildStage {
+		/** Called before the first generated file is passed to {@link #process(SiteFile)}. **/
+		public void begin (SiteGenerator generator);
+
+		/** Returns whether the stage wants to process the generated file. The file's content is not yet loaded. **/
+		public boolean accepts (SiteFile file);
+
+		/** Processes the generated file. The file's content is the content written to the output file. **/
+		public void process (SiteFile file);
+
+		/** Called after all generated files have been passed to {@link #process(SiteFile)}. **/
+		public void end (SiteGenerator generator);
+	}
+
 	/** Exception used for all error reporting. **/
 	@SuppressWarnings("serial")
 	public static class SiteGeneratorException extends RuntimeException {
@@ -30,9 +62,22 @@ public class SiteGenerator {
 		}
 	}
 
+	/** The maximum number of files passed to {@link SiteFileProcessor#process(List)} at once. **/
+	public static final int BATCH_SIZE = 16;
+
+	/** The name of the manifest a sharded build writes to its output directory, see {@link #setShard(int, int)}. **/
+	public static final String SHARD_MANIFEST = ".basis-shard";
+
 	private final File inputDirectory;
 	private final File outputDirectory;
 	private final List<SiteFileProcessor> processors = new ArrayList<>();
+	private final List<PostBuildStage> postBuildStages = new ArrayList<>();
+	private int shardIndex = 0;
+	private int shardCount = 1;
+	private volatile Build build;
+	private SharedOutputFiles sharedOutputFiles;
+	/** The files processed via {@link #getProcessedFile(File, File)} on the current thread, innermost last. **/
+	private final ThreadLocal<List<File>> processing = ThreadLocal.withInitial(ArrayList::new);
 
 	/** Constructs a new site generator that processes the files in the input directory via the list of {@link SiteFileProcessor}
 	 * instances (as returned by {@link #getProcessors()}) and writes the results to the output directory. **/
@@ -51,6 +96,11 @@ public class SiteGenerator {
 		return outputDirectory;
 	}
 
+	/** Returns the {@link SiteFileProcessor} instances of this generator, in the order they are applied to input files. **/
+	public List<SiteFileProcessor> getProcessors () {
+		return processors;
+	}
+
 	/** Adds a {@link SiteFileProcessor} to this generator. The processors will be applied to input files in the order they have
 	 * been added. **/
 	public void addProcessor (SiteFileProcessor processor) {
@@ -69,12 +119,62 @@ public class SiteGenerator {
 		processors.add(processor);
 	}
 
+	/** Adds a {@link PostBuildStage} to this generator. The stages will be run after all files have been generated. **/
+	public void addPostBuildStage (PostBuildStage stage) {
+		this.postBuildStages.add(stage);
+	}
+
+	/** Makes this generator generate only a part of the site, so the parts can be generated by multiple processes
+	 * concurrently. Input files are assigned to one of the shards based on their path relative to the input directory, see
+	 * {@link #isInShard(String)}. Files for which a {@link SiteFileProcessor} returns true from
+	 * {@link SiteFileProcessor#processInAllShards(File)} are processed by every shard. Instead of running the
+	 * {@link PostBuildStage} instances, a sharded build writes a manifest of the generated files to its output directory. The
+	 * output directories of all shards are combined via {@link #merge(List)}.
+	 * @param index the index of the shard to generate, between 0 and count - 1.
+	 * @param count the number of shards. */
+	public void setShard (int index, int count) {
+		if (count < 1 || index < 0 || index >= count) throw new SiteGeneratorException("Invalid shard " + index + "/" + count + ".");
+		this.shardIndex = index;
+		this.shardCount = count;
+	}
+
+	/** Returns the index of the shard generated by this generator, see {@link #setShard(int, int)}. **/
+	public int getShardIndex () {
+		return shardIndex;
+	}
+
+	/** Returns the number of shards, or 1 if the build is not sharded, see {@link #setShard(int, int)}. **/
+	public int getShardCount () {
+		return shardCount;
+	}
+
+	/** Sets the {@link SharedOutputFiles} shared with the generators of other sites generated from the same input directory, or
+	 * null if output files are not shared. **/
+	public void setSharedOutputFiles (SharedOutputFiles sharedOutputFiles) {
+		this.sharedOutputFiles = sharedOutputFiles;
+	}
+
+	/** Returns whether the item with the given key, e.g. the path of an input file relative to the input directory, belongs to the
+	 * shard generated by this generator. Always returns true if the build is not sharded. The assignment is deterministic, so
+	 * each item belongs to exactly one of the shards, no matter which process generates them. **/
+	public boolean isInShard (String key) {
+		return shardCount == 1 || Math.floorMod(key.hashCode(), shardCount) == shardIndex;
+	}
+
+	private boolean isInShard (File inputFile) {
+		if (shardCount == 1 || isInShard(getRelativeInputPath(inputFile))) return true;
+		for (SiteFileProcessor processor : processors) {
+			if (processor.processInAllShards(inputFile)) return true;
+		}
+		return false;
+	}
+
 	/** Transforms the files in the input directory via a list of {@link SiteFileProcessor} instances added via
 	 * {@link #addProcessor(SiteFileProcessor)}, and writes the results to an output directory. Files and directories starting with
 	 * "_" will be ignored. Throws a {@link SiteGeneratorException} in case anything went wrong. When an error occurs, files
 	 * written until that point will not be cleaned up. */
 	public void generate () {
-		generate(inputDirectory, inputDirectory, outputDirectory, processors, null);
+		generate(null);
 	}
 
 	/** Transforms the files in the input directory via a list of {@link SiteFileProcessor} instances added via
@@ -83,41 +183,565 @@ public class SiteGenerator {
 	 * written until that point will not be cleaned up. For each successfully processed file, the {@link SiteGeneratorCallback}
 	 * will be called. */
 	public void generate (SiteGeneratorCallback callback) {
-		generate(inputDirectory, inputDirectory, outputDirectory, processors, callback);
+		generate(Collections.<File> emptyList(), null, callback);
+	}
+
+	/** Transforms the files in the input directory like {@link #generate(SiteGeneratorCallback)}, but processes the given
+	 * priority files first. Once the priority files have been written, the priority callback is called, before the remaining files
+	 * are generated. If none of the priority files can be generated, e.g. because they have been deleted or start with "_", the
+	 * priority callback is called after all files have been generated instead. Throws a {@link CancellationException} if the
+	 * build was cancelled via {@link #cancel()}.
+	 * @param priorityFiles the files to generate first. Files outside the input directory and directories are ignored.
+	 * @param priorityCallback the optional callback to call once the priority files have been written.
+	 * @param callback the optional callback to call for each successfully processed file. */
+	public void generate (Collection<File> priorityFiles, Runnable priorityCallback, SiteGeneratorCallback callback) {
+		Build build = new Build(callback);
+		this.build = build;
+		try {
+			for (SiteFileProcessor processor : processors)
+				processor.buildStarted(this);
+
+			for (File file : priorityFiles) {
+				File inputFile = toInputFile(file);
+				if (inputFile != null && inputFile.isFile() && isInShard(inputFile) && build.done.add(normalize(inputFile)))
+					generate(Arrays.asList(inputFile), build);
+			}
+			if (!build.done.isEmpty() && priorityCallback != null) {
+				priorityCallback.run();
+				priorityCallback = null;
+			}
+
+			generate(inputDirectory, build);
+
+			for (SiteFileProcessor processor : processors)
+				processor.buildFinished(this);
+			if (shardCount > 1)
+				ShardManifest.write(this, build.generated);
+			else
+				runPostBuildStages(build.generated);
+			if (priorityCallback != null) priorityCallback.run();
+		} finally {
+			this.build = null;
+		}
+	}
+
+	/** Re-generates the site after the given files and directories in the input directory have been created, modified or
+	 * deleted, e.g. in watch mode. Informs the {@link SiteFileProcessor} instances about the changes via
+	 * {@link SiteFileProcessor#watchRebuild(SiteGenerator, List)} before calling {@link #generate(SiteGeneratorCallback)}. **/
+	public void rebuild (List<File> changedFiles, SiteGeneratorCallback callback) {
+		rebuild(changedFiles, null, callback);
 	}
 
-	/** Processes a single file or directory via the list of {@link SiteFileProcessor} instances. **/
-	private void generate (File inputFile, File inputDirectory, File outputDirectory, List<SiteFileProcessor> processors, SiteGeneratorCallback callback) {
+	/** Re-generates the site after the given files and directories in the input directory have been created, modified or
+	 * deleted, e.g. in watch mode. Informs the {@link SiteFileProcessor} instances about the changes via
+	 * {@link SiteFileProcessor#watchRebuild(SiteGenerator, List)}, then generates the changed files first, see
+	 * {@link #generate(Collection, Runnable, SiteGeneratorCallback)}. **/
+	public void rebuild (List<File> changedFiles, Runnable changedCallback, SiteGeneratorCallback callback) {
+		for (SiteFileProcessor processor : processors)
+			processor.watchRebuild(this, changedFiles);
+		generate(changedFiles, changedCallback, callback);
+	}
+
+	/** Cancels the build currently in progress, if any. The build stops before processing the next batch of files, and
+	 * {@link #generate(Collection, Runnable, SiteGeneratorCallback)} throws a {@link CancellationException}. Files written until
+	 * that point will not be cleaned up. Does nothing if no build is in progress, so a later build is not affected. **/
+	public void cancel () {
+		Build build = this.build;
+		if (build != null) build.cancelled = true;
+	}
+
+	private void checkCancelled (Build build) {
+		if (build.cancelled) throw new CancellationException("Generating " + inputDirectory.getPath() + " was cancelled.");
+	}
+
+	/** Returns the file relative to the input directory, in the same form as the files encountered while walking the input
+	 * directory, or null if the file is not in the input directory or any of its path components starts with "_". **/
+	private File toInputFile (File file) {
+		Path path = normalize(inputDirectory).toPath().relativize(normalize(file).toPath());
+		if (path.toString().isEmpty() || path.startsWith("..")) return null;
+		for (Path component : path) {
+			if (component.toString().startsWith("_")) return null;
+		}
+		return new File(inputDirectory, path.toString());
+	}
+
+	private static File normalize (File file) {
+		return file.toPath().toAbsolutePath().normalize().toFile();
+	}
+
+	/** The state of a build in progress. **/
+	private static class Build {
+		final SiteGeneratorCallback callback;
+		/** A {@link SiteFile} without content for each generated file, guarded by synchronizing on the build. **/
+		final List<SiteFile> generated = new ArrayList<SiteFile>();
+		/** The normalized absolute paths of the input files that have been generated already. **/
+		final Set<File> done = new HashSet<File>();
+		/** The processed input files by normalized absolute path. Files written to the output directory are stored without
+		 * content. See {@link SiteGenerator#getProcessedFile(File, File)}. **/
+		final Map<File, CompletableFuture<SiteFile>> processed = new ConcurrentHashMap<File, CompletableFuture<SiteFile>>();
+		/** The files each file is waiting for to be processed, guarded by synchronizing on the map. **/
+		final Map<File, List<File>> waitingFor = new HashMap<File, List<File>>();
+		volatile boolean cancelled;
+		/** The batch being passed to the processors, or null. **/
+		volatile Batch batch;
+
+		Build (SiteGeneratorCallback callback) {
+			this.callback = callback;
+		}
+	}
+
+	/** The files of a batch being passed to the processors, see {@link SiteGenerator#generate(List, Build)}. **/
+	static class Batch {
+		/** The normalized absolute paths of the input files passed to the processors, in order. **/
+		final List<File> order = new ArrayList<File>();
+		/** The files passed to the processors by normalized absolute path, without the files taken out of the batch via
+		 * {@link SiteGenerator#takeFromBatch(Batch, File)}. Guarded by synchronizing on the batch. **/
+		final Map<File, SiteFile> files = new HashMap<File, SiteFile>();
+		/** The index of the processor currently processing the batch. **/
+		volatile int processor;
+		/** The file the current processor is processing, set by {@link SiteFileProcessor#process(List)}, or null if the processor
+		 * overrides it. Names the failing file if the batch fails, and tells which files of the batch the processor is done with,
+		 * see {@link SiteGenerator#getNextProcessor(Batch, File)}. **/
+		volatile SiteFile current;
+	}
+
+	/** Processes a single file or directory via the list of {@link SiteFileProcessor} instances. The files of a directory are
+	 * passed to the processors in groups of at most {@link #BATCH_SIZE} files. Files that have been generated already are
+	 * skipped. **/
+	private void generate (File inputFile, Build build) {
 		// Ignore files starting with "_" or non-existing files
 		if (inputFile.getName().startsWith("_") || !inputFile.exists()) return;
+		checkCancelled(build);
 
-		// If this is a directory, generate the output directory and recurse
-		if (inputFile.isDirectory()) {
-			File outputFile = new File(outputDirectory, inputFile.getAbsolutePath().replace(inputDirectory.getAbsolutePath(), ""));
-			if (!outputFile.exists() && !outputFile.mkdirs()) throw new SiteGeneratorException("Couldn't create output directory " + outputFile.getPath() + ".");
-			File[] children = inputFile.listFiles();
-			if (children == null) throw new SiteGeneratorException("Couldn't read directory " + inputFile.getPath() + ".");
-			for (File child : children)
-				generate(child, inputDirectory, outputDirectory, processors, callback);
+		// If this is a file, process it on its own
+		if (!inputFile.isDirectory()) {
+			if (isInShard(inputFile) && build.done.add(normalize(inputFile))) generate(Arrays.asList(inputFile), build);
 			return;
 		}
 
-		// Otherwise, load the file content and run it through the processors
+		// Otherwise, generate the output directory, process the files in batches and recurse into sub-directories
+		File outputFile = new File(outputDirectory, inputFile.getAbsolutePath().replace(inputDirectory.getAbsolutePath(), ""));
+		if (!outputFile.exists() && !outputFile.mkdirs()) throw new SiteGeneratorException("Couldn't create output directory " + outputFile.getPath() + ".");
+		File[] children = inputFile.listFiles();
+		if (children == null) throw new SiteGeneratorException("Couldn't read directory " + inputFile.getPath() + ".");
+
+		List<File> batch = new ArrayList<File>();
+		for (File child : children) {
+			if (child.getName().startsWith("_") || !child.isFile() || !isInShard(child) || !build.done.add(normalize(child))) continue;
+			batch.add(child);
+			if (batch.size() == BATCH_SIZE) {
+				generate(batch, build);
+				batch.clear();
+			}
+		}
+		if (!batch.isEmpty()) generate(batch, build);
+
+		for (File child : children) {
+			if (child.isDirectory()) generate(child, build);
+		}
+	}
+
+	/** Loads the content of the files, runs them through the processors as a batch, and writes the results. The files are claimed
+	 * in {@link Build#processed} before they are processed, so a file of the batch requested via
+	 * {@link #getProcessedFile(File, File)} while the batch is processed is only processed once, see
+	 * {@link #takeFromBatch(Batch, File)}. **/
+	private void generate (List<File> inputFiles, Build build) {
+		checkCancelled(build);
+		Batch batch = new Batch();
+		Map<File, CompletableFuture<SiteFile>> futures = new LinkedHashMap<File, CompletableFuture<SiteFile>>();
+		// The file being loaded or written, or null while the processors process the batch, see Batch#current
+		File failingFile = null;
 		try {
-			File outputFile = generateOutputFile(inputFile);
+			// Files processed on request of another file already are written as is.
+			List<SiteFile> files = new ArrayList<SiteFile>(inputFiles.size());
+			for (File inputFile : inputFiles) {
+				File key = normalize(inputFile);
+				CompletableFuture<SiteFile> future = new CompletableFuture<SiteFile>();
+				CompletableFuture<SiteFile> existing = build.processed.putIfAbsent(key, future);
+				futures.put(key, existing != null ? existing : future);
+				if (existing != null) continue;
+				batch.order.add(key);
+				failingFile = inputFile;
+				SiteFile file = loadFile(inputFile);
+				file.batch = batch;
+				batch.files.put(key, file);
+				files.add(file);
+			}
+			failingFile = null;
 
-			SiteFile file = new SiteFile(inputFile, outputFile, Files.readAllBytes(inputFile.toPath()));
-			for (SiteFileProcessor processor : processors)
-				processor.process(file);
-			Files.write(outputFile.toPath(), file.getContent());
-			if (callback != null) callback.generated(file);
+			build.batch = batch;
+			try {
+				for (int i = 0; i < processors.size() && !files.isEmpty(); i++) {
+					batch.processor = i;
+					batch.current = null;
+					processors.get(i).process(files);
+					files.removeIf(SiteFile::isDiscarded);
+				}
+			} finally {
+				build.batch = null;
+			}
+
+			batch.current = null;
+			for (Map.Entry<File, CompletableFuture<SiteFile>> entry : futures.entrySet()) {
+				failingFile = entry.getKey();
+				SiteFile file;
+				synchronized (batch) {
+					file = batch.files.get(entry.getKey());
+				}
+				if (file != null)
+					entry.getValue().complete(file);
+				else
+					file = getResult(entry.getValue());
+				failingFile = file.getInput();
+				if (!file.isDiscarded()) write(file, build);
+
+				// Keep the processed file without content, consumers read the content from the output file.
+				SiteFile withoutContent = new SiteFile(file.getInput(), file.getOutput(), file.getMetadata());
+				withoutContent.setDiscarded(file.isDiscarded());
+				build.processed.put(entry.getKey(), CompletableFuture.completedFuture(withoutContent));
+			}
+		} catch (Throwable t) {
+			// Fail requests waiting for files of the batch, later requests process the files again.
+			for (File key : batch.order) {
+				CompletableFuture<SiteFile> future = futures.get(key);
+				future.completeExceptionally(t);
+				if (future.isCompletedExceptionally()) build.processed.remove(key, future);
+			}
+
+			if (t instanceof TemplateException) throw (TemplateException)t;
+			if (t instanceof CancellationException) throw (CancellationException)t;
+			SiteFile current = batch.current;
+			if (failingFile == null && current != null) failingFile = current.getInput();
+			if (failingFile == null && inputFiles.size() == 1) failingFile = inputFiles.get(0);
+			if (failingFile != null) throw new SiteGeneratorException("Couldn't generate output for file " + failingFile.getPath() + ".", t);
+			throw new SiteGeneratorException("Couldn't generate output for files in directory " + inputFiles.get(0).getParent() + ".", t);
+		}
+	}
+
+	/** Generates a file created by a {@link SiteFileProcessor} while processing an input file, e.g. one page per row of a data
+	 * file. The file is passed to the processors following the given processor, and written to the output directory like any
+	 * other file. May only be called during a build, and may be called from multiple threads concurrently, in which case the
+	 * following processors must support processing files concurrently. Throws a {@link CancellationException} if the build was
+	 * cancelled via {@link #cancel()}.
+	 * @param file the file to generate. Its content and metadata are passed to the following processors as is.
+	 * @param processor the processor that created the file. */
+	public void generate (SiteFile file, SiteFileProcessor processor) {
+		Build build = this.build;
+		if (build == null) throw new SiteGeneratorException("Can't generate file " + file.getOutput().getPath() + " outside of a build.");
+		checkCancelled(build);
+
+		int index = processors.indexOf(processor);
+		if (index < 0) throw new SiteGeneratorException("Processor " + processor.getClass().getName() + " is not part of this generator.");
+		try {
+			createParentDirectory(file.getOutput());
+			List<SiteFile> files = new ArrayList<SiteFile>(Arrays.asList(file));
+			process(files, index + 1);
+			if (!files.isEmpty()) write(file, build);
+		} catch (TemplateException | SiteGeneratorException | CancellationException e) {
+			throw e;
 		} catch (Throwable t) {
-			if (t instanceof TemplateException) {
-				throw (TemplateException)t;
+			throw new SiteGeneratorException("Couldn't generate output file " + file.getOutput().getPath() + ".", t);
+		}
+	}
+
+	/** Returns the input file after it has been passed through all processors, e.g. to include the rendered content of a page in
+	 * another page. Each file is processed at most once per build, no matter how many files request it. If the file hasn't been
+	 * processed yet, it is processed immediately, so files are processed in the order of their dependencies. May only be called
+	 * during a build. Throws a {@link SiteGeneratorException} if the file can't be processed, doesn't produce output, or if files
+	 * request each other in a cycle.
+	 * @param requestingFile the input file requesting the file, used to detect cycles.
+	 * @param file the input file to return, either absolute or relative to the working directory.
+	 * @return a copy of the processed file, including its content and metadata. */
+	public SiteFile getProcessedFile (File requestingFile, File file) {
+		Build build = this.build;
+		if (build == null) throw new SiteGeneratorException("Can't process file " + file.getPath() + " outside of a build.");
+		File inputFile = toInputFile(file);
+		if (inputFile == null || !inputFile.isFile()) throw new SiteGeneratorException("File " + file.getPath() + " is not a file in the input directory.");
+		for (SiteFileProcessor processor : processors) {
+			if (!processor.producesOutputFile(inputFile)) throw new SiteGeneratorException("File " + inputFile.getPath() + " doesn't produce an output file.");
+		}
+
+		File key = normalize(inputFile);
+		File requester = normalize(requestingFile);
+		List<File> stack = processing.get();
+		int pushed = 0;
+		if (stack.isEmpty()) {
+			// The thread works on behalf of the batch file being processed, e.g. rendering a fragment or a data page of it
+			Batch batch = build.batch;
+			SiteFile current = batch != null ? batch.current : null;
+			if (current != null && !normalize(current.getInput()).equals(requester)) {
+				stack.add(normalize(current.getInput()));
+				pushed++;
+			}
+		}
+		if (stack.isEmpty() || !stack.get(stack.size() - 1).equals(requester)) {
+			stack.add(requester);
+			pushed++;
+		}
+		SiteFile result;
+		try {
+			int index = stack.indexOf(key);
+			if (index >= 0) {
+				List<File> cycle = new ArrayList<File>(stack.subList(index, stack.size()));
+				cycle.add(key);
+				throw cycleException(cycle);
+			}
+
+			CompletableFuture<SiteFile> future = new CompletableFuture<SiteFile>();
+			CompletableFuture<SiteFile> existing = build.processed.putIfAbsent(key, future);
+			Batch batch = build.batch;
+			SiteFile batchFile = existing != null && batch != null ? takeFromBatch(batch, key) : null;
+			if (existing == null) {
+				result = processRequested(build, requester, inputFile, future, null, 0);
+			} else if (batchFile != null) {
+				// The file is part of the batch being processed, and the batch's processors haven't finished it yet
+				if (batchFile.isDiscarded()) throw new SiteGeneratorException("File " + inputFile.getPath() + " doesn't produce an output file.");
+				result = processRequested(build, requester, inputFile, existing, batchFile, getNextProcessor(batch, key));
 			} else {
-				throw new SiteGeneratorException("Couldn't generate output for file " + inputFile.getPath() + ".", t);
+				// The file may be processed on another thread, e.g. by a page of a data file. Make sure
+				// it doesn't wait for the requesting file before waiting for it.
+				boolean waiting = !existing.isDone();
+				if (waiting) addDependency(build, requester, key);
+				try {
+					result = getResult(existing);
+				} finally {
+					if (waiting) removeDependency(build, requester, key);
+				}
+			}
+		} finally {
+			for (int i = 0; i < pushed; i++)
+				stack.remove(stack.size() - 1);
+		}
+
+		if (result.isDiscarded()) throw new SiteGeneratorException("File " + inputFile.getPath() + " doesn't produce an output file.");
+		try {
+			byte[] content = result.getContent() != null ? result.getContent() : Files.readAllBytes(result.getOutput().toPath());
+			SiteFile copy = new SiteFile(result.getInput(), result.getOutput(), content);
+			copy.getMetadata().putAll(result.getMetadata());
+			return copy;
+		} catch (IOException e) {
+			throw new SiteGeneratorException("Couldn't read output file " + result.getOutput().getPath() + ".", e);
+		}
+	}
+
+	/** Processes a requested file on the current thread, starting at the given processor, and completes its future with the
+	 * result.
+	 * @param batchFile the file taken from the batch being processed, or null if the file is loaded from the input file. */
+	private SiteFile processRequested (Build build, File requester, File inputFile, CompletableFuture<SiteFile> future, SiteFile batchFile,
+		int firstProcessor) {
+		File key = normalize(inputFile);
+		List<File> stack = processing.get();
+		addDependency(build, requester, key);
+		stack.add(key);
+		try {
+			SiteFile processed = batchFile != null ? batchFile : loadFile(inputFile);
+			process(new ArrayList<SiteFile>(Arrays.asList(processed)), firstProcessor);
+			future.complete(processed);
+			return processed;
+		} catch (Throwable t) {
+			RuntimeException e = t instanceof TemplateException || t instanceof SiteGeneratorException || t instanceof CancellationException
+				? (RuntimeException)t : new SiteGeneratorException("Couldn't process file " + inputFile.getPath() + ".", t);
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			stack.remove(stack.size() - 1);
+			removeDependency(build, requester, key);
+		}
+	}
+
+	/** Takes the file out of the batch, so the batch's processors skip it, and returns a copy of it to be processed on its own.
+	 * Returns null if the file is not part of the batch, or has been taken already. Returns the file as is if a processor
+	 * discarded it. **/
+	private static SiteFile takeFromBatch (Batch batch, File key) {
+		synchronized (batch) {
+			SiteFile file = batch.files.get(key);
+			if (file == null || file.isDiscarded()) return file;
+			batch.files.remove(key);
+			file.setDiscarded(true);
+			SiteFile copy = new SiteFile(file.getInput(), file.getOutput(), file.getContent());
+			copy.getMetadata().putAll(file.getMetadata());
+			copy.inputContent = file.inputContent;
+			return copy;
+		}
+	}
+
+	/** Returns the index of the first processor that hasn't processed the file of the batch yet. Processors process the files of
+	 * a batch in order, so the processor currently processing the batch is done with the file if it comes before the file the
+	 * processor is processing. If the processor overrides {@link SiteFileProcessor#process(List)}, the file is passed to it again,
+	 * and the processor skips it in the batch as it has been discarded. **/
+	private static int getNextProcessor (Batch batch, File key) {
+		SiteFile current = batch.current;
+		if (current == null) return batch.processor;
+		return batch.order.indexOf(normalize(current.getInput())) > batch.order.indexOf(key) ? batch.processor + 1 : batch.processor;
+	}
+
+	/** Records that the requester waits for the file. Throws a {@link SiteGeneratorException} if the file is waiting for the
+	 * requester, directly or transitively. **/
+	private void addDependency (Build build, File requester, File file) {
+		synchronized (build.waitingFor) {
+			List<File> cycle = findDependency(build, file, requester, new HashSet<File>());
+			if (cycle != null) {
+				cycle.add(0, requester);
+				throw cycleException(cycle);
+			}
+			build.waitingFor.computeIfAbsent(requester, (File key) -> new ArrayList<File>()).add(file);
+		}
+	}
+
+	private void removeDependency (Build build, File requester, File file) {
+		synchronized (build.waitingFor) {
+			List<File> files = build.waitingFor.get(requester);
+			if (files == null) return;
+			files.remove(file);
+			if (files.isEmpty()) build.waitingFor.remove(requester);
+		}
+	}
+
+	/** Returns the path of files from the file to the dependency, or null if the file doesn't wait for the dependency. **/
+	private List<File> findDependency (Build build, File file, File dependency, Set<File> visited) {
+		if (file.equals(dependency)) return new ArrayList<File>(Arrays.asList(file));
+		if (!visited.add(file)) return null;
+		List<File> files = build.waitingFor.get(file);
+		if (files == null) return null;
+		for (File next : files) {
+			List<File> path = findDependency(build, next, dependency, visited);
+			if (path != null) {
+				path.add(0, file);
+				return path;
 			}
 		}
+		return null;
+	}
+
+	private SiteGeneratorException cycleException (List<File> cycle) {
+		StringBuilder path = new StringBuilder();
+		for (File file : cycle) {
+			if (path.length() > 0) path.append(" -> ");
+			path.append(getRelativeInputPath(file));
+		}
+		return new SiteGeneratorException("Files depend on each other in a cycle: " + path + ".");
+	}
+
+	private static SiteFile getResult (CompletableFuture<SiteFile> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+			throw new SiteGeneratorException("Couldn't process file.", e.getCause());
+		}
+	}
+
+	/** Passes the files to the processors, starting at the given processor index. Files discarded by a processor are removed from
+	 * the list and not passed to the following processors. **/
+	private void process (List<SiteFile> files, int firstProcessor) {
+		for (int i = firstProcessor; i < processors.size() && !files.isEmpty(); i++) {
+			processors.get(i).process(files);
+			files.removeIf(SiteFile::isDiscarded);
+		}
+	}
+
+	/** Reads the input file and creates its output directory, so processors can write additional files next to the output file,
+	 * e.g. image derivatives. Changed files in watch mode and files requested via {@link #getProcessedFile(File, File)} may be
+	 * processed before the walk created their output directory. **/
+	private SiteFile loadFile (File inputFile) throws IOException {
+		File outputFile = generateOutputFile(inputFile);
+		createParentDirectory(outputFile);
+		SiteFile file = new SiteFile(inputFile, outputFile, Files.readAllBytes(inputFile.toPath()));
+		file.inputContent = file.getContent();
+		return file;
+	}
+
+	private static void createParentDirectory (File file) {
+		File parent = file.getParentFile();
+		if (parent != null && !parent.exists() && !parent.mkdirs() && !parent.exists())
+			throw new SiteGeneratorException("Couldn't create output directory " + parent.getPath() + ".");
+	}
+
+	private void write (SiteFile file, Build build) throws IOException {
+		if (sharedOutputFiles != null)
+			sharedOutputFiles.write(file, file.getContent() == file.inputContent);
+		else
+			Files.write(file.getOutput().toPath(), file.getContent());
+		synchronized (build) {
+			if (build.callback != null) build.callback.generated(file);
+			build.generated.add(new SiteFile(file.getInput(), file.getOutput(), file.getMetadata()));
+		}
+	}
+
+	/** Streams over the generated files once, passing each file's output to all {@link PostBuildStage} instances that accept it.
+	 **/
+	private void runPostBuildStages (List<SiteFile> generated) {
+		if (postBuildStages.isEmpty()) return;
+
+		for (PostBuildStage stage : postBuildStages)
+			stage.begin(this);
+
+		List<PostBuildStage> accepting = new ArrayList<PostBuildStage>();
+		for (SiteFile file : generated) {
+			accepting.clear();
+			for (PostBuildStage stage : postBuildStages) {
+				if (stage.accepts(file)) accepting.add(stage);
+			}
+			if (accepting.isEmpty()) continue;
+
+			try {
+				SiteFile output = new SiteFile(file.getInput(), file.getOutput(), Files.readAllBytes(file.getOutput().toPath()));
+				output.getMetadata().putAll(file.getMetadata());
+				output.lastModified = file.lastModified;
+				for (PostBuildStage stage : accepting)
+					stage.process(output);
+			} catch (IOException e) {
+				throw new SiteGeneratorException("Couldn't read output file " + file.getOutput().getPath() + ".", e);
+			}
+		}
+
+		for (PostBuildStage stage : postBuildStages)
+			stage.end(this);
+	}
+
+	/** Combines the output directories of the shards of a sharded build into the output directory of this generator, and runs the
+	 * {@link PostBuildStage} instances on the combined output, see {@link #setShard(int, int)}. The shard directories are copied
+	 * in order, files of later shards replace files of earlier shards with the same path. Throws a {@link SiteGeneratorException}
+	 * if a shard directory has no manifest.
+	 * @param shardDirectories the output directories of the shards. */
+	public void merge (List<File> shardDirectories) {
+		List<SiteFile> generated = new ArrayList<SiteFile>();
+		for (File shardDirectory : shardDirectories) {
+			generated.addAll(ShardManifest.read(this, shardDirectory));
+			copy(shardDirectory, outputDirectory);
+		}
+		runPostBuildStages(generated);
+	}
+
+	private static void copy (File source, File target) {
+		if (!target.exists() && !target.mkdirs()) throw new SiteGeneratorException("Couldn't create output directory " + target.getPath() + ".");
+		File[] children = source.listFiles();
+		if (children == null) throw new SiteGeneratorException("Couldn't read directory " + source.getPath() + ".");
+		for (File child : children) {
+			File targetChild = new File(target, child.getName());
+			if (child.isDirectory()) {
+				copy(child, targetChild);
+			} else if (!child.getName().equals(SHARD_MANIFEST)) {
+				try {
+					Files.copy(child.toPath(), targetChild.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				} catch (IOException e) {
+					throw new SiteGeneratorException("Couldn't copy " + child.getPath() + " to " + targetChild.getPath() + ".", e);
+				}
+			}
+		}
+	}
+
+	/** Returns the path of the input file relative to the input directory, using forward slashes as separators, e.g.
+	 * <code>blog/hello-world/index.bt.html</code>. **/
+	public String getRelativeInputPath (File inputFile) {
+		return normalize(inputDirectory).toPath().relativize(normalize(inputFile).toPath()).toString().replace(File.separatorChar, '/');
+	}
+
+	/** Returns the path of the output file relative to the output directory, using forward slashes as separators, e.g.
+	 * <code>blog/hello-world/index.html</code>. **/
+	public String getRelativeOutputPath (File outputFile) {
+		String path = outputDirectory.getAbsoluteFile().toPath().normalize().relativize(outputFile.getAbsoluteFile().toPath().normalize()).toString();
+		return path.replace(File.separatorChar, '/');
 	}
 
 	/** Generates the output file by passing the input file through the list of {@link SiteFileProcessor} instances of this
@@ -0,0 +1,347 @@
+
+package io.marioslab.basis.site.processors;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.marioslab.basis.site.SiteGenerator.SiteGeneratorException;
+
+/** Reads the rows of a data file one at a time, so files with millions of rows can be processed without holding them in memory.
+ * Supported formats are CSV files (<code>.csv</code>) with a header line naming the columns, and JSON lines files
+ * (<code>.jsonl</code>, <code>.ndjson</code>) with one JSON object per line. A row is returned as a map from column name to
+ * value. CSV values are strings, JSON values are strings, numbers ({@link Long} or {@link Double}), booleans, null, lists or
+ * maps. **/
+abstract class DataSource implements Closeable {
+	protected final File file;
+	protected final BufferedReader reader;
+	protected int line;
+
+	private DataSource (File file) throws IOException {
+		this.file = file;
+		this.reader = new BufferedReader(new InputStreamReader(Files.newInputStream(file.toPath()), "UTF-8"));
+		reader.mark(1);
+		if (reader.read() != '\uFEFF') reader.reset();
+	}
+
+	/** Opens the data file, choosing the format based on the file extension. Throws a {@link SiteGeneratorException} if the
+	 * format is not supported or the file can't be read. **/
+	static DataSource open (File file) {
+		String name = file.getName().toLowerCase();
+		try {
+			if (name.endsWith(".csv")) return new CsvDataSource(file);
+			if (name.endsWith(".jsonl") || name.endsWith(".ndjson")) return new JsonLinesDataSource(file);
+		} catch (IOException e) {
+			throw new SiteGeneratorException("Couldn't read data file " + file.getPath() + ".", e);
+		}
+		throw new SiteGeneratorException("Unsupported data file " + file.getPath() + ", expected a .csv or .jsonl file.");
+	}
+
+	/** Returns the next row, or null if all rows have been read. Throws a {@link SiteGeneratorException} if the file is
+	 * malformed. **/
+	abstract Map<String, Object> next ();
+
+	/** Returns the line in the file the last row returned by {@link #next()} started on, starting at 1. **/
+	int getLine () {
+		return line;
+	}
+
+	@Override
+	public void close () {
+		try {
+			reader.close();
+		} catch (IOException e) {
+			// Nothing we can do about it
+		}
+	}
+
+	protected SiteGeneratorException error (String message, int line) {
+		return new SiteGeneratorException(message + " in data file " + file.getPath() + ", line " + line + ".");
+	}
+
+	private static class CsvDataSource extends DataSource {
+		private final List<String> columns;
+		private int nextLine = 1;
+
+		CsvDataSource (File file) throws IOException {
+			super(file);
+			columns = readRecord();
+			if (columns == null) throw new SiteGeneratorException("Data file " + file.getPath() + " has no header line.");
+		}
+
+		@Override
+		Map<String, Object> next () {
+			List<String> values;
+			try {
+				values = readRecord();
+			} catch (IOException e) {
+				throw new SiteGeneratorException("Couldn't read data file " + file.getPath() + ".", e);
+			}
+			if (values == null) return null;
+			if (values.size() > columns.size()) throw error("Expected " + columns.size() + " values, got " + values.size(), line);
+
+			Map<String, Object> row = new LinkedHashMap<String, Object>();
+			for (int i = 0; i < columns.size(); i++)
+				row.put(columns.get(i), i < values.size() ? values.get(i) : "");
+			return row;
+		}
+
+		/** Reads the next record as specified by RFC 4180. Quoted values may contain commas, line breaks, and quotes escaped as
+		 * <code>""</code>. Empty lines are skipped. Returns null at the end of the file. **/
+		private List<String> readRecord () throws IOException {
+			int c = reader.read();
+			while (c == '\r' || c == '\n') {
+				if (c == '\n') nextLine++;
+				c = reader.read();
+			}
+			if (c == -1) return null;
+
+			line = nextLine;
+			List<String> values = new ArrayList<String>();
+			StringBuilder value = new StringBuilder();
+			boolean quoted = false, wasQuoted = false;
+			while (true) {
+				if (quoted) {
+					if (c == -1) throw error("Unterminated quoted value", line);
+					if (c == '"') {
+						reader.mark(1);
+						int next = reader.read();
+						if (next == '"') {
+							value.append('"');
+						} else {
+							reader.reset();
+							quoted = false;
+						}
+					} else {
+						if (c == '\n') nextLine++;
+						value.append((char)c);
+					}
+				} else if (c == '"' && value.length() == 0 && !wasQuoted) {
+					quoted = wasQuoted = true;
+				} else if (c == ',') {
+					values.add(value.toString());
+					value.setLength(0);
+					wasQuoted = false;
+				} else if (c == '\n' || c == '\r' || c == -1) {
+					if (c == '\n') nextLine++;
+					values.add(value.toString());
+					return values;
+				} else {
+					value.append((char)c);
+				}
+				c = reader.read();
+			}
+		}
+	}
+
+	private static class JsonLinesDataSource extends DataSource {
+		JsonLinesDataSource (File file) throws IOException {
+			super(file);
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		Map<String, Object> next () {
+			String text;
+			try {
+				do {
+					text = reader.readLine();
+					line++;
+				} while (text != null && text.trim().isEmpty());
+			} catch (IOException e) {
+				throw new SiteGeneratorException("Couldn't read data file " + file.getPath() + ".", e);
+			}
+			if (text == null) return null;
+
+			JsonParser parser = new JsonParser(text);
+			Object value;
+			try {
+				value = parser.parse();
+			} catch (IllegalArgumentException e) {
+				throw error(e.getMessage(), line);
+			}
+			if (!(value instanceof Map)) throw error("Expected a JSON object", line);
+			return (Map<String, Object>)value;
+		}
+	}
+
+	/** Parses a single JSON value. Throws an {@link IllegalArgumentException} if the text is not valid JSON. **/
+	private static class JsonParser {
+		private final String text;
+		private int index;
+
+		JsonParser (String text) {
+			this.text = text;
+		}
+
+		Object parse () {
+			Object value = parseValue();
+			skipWhitespace();
+			if (index < text.length()) throw new IllegalArgumentException("Unexpected '" + text.charAt(index) + "' after JSON value");
+			return value;
+		}
+
+		private Object parseValue () {
+			skipWhitespace();
+			if (index >= text.length()) throw new IllegalArgumentException("Unexpected end of JSON value");
+			char c = text.charAt(index);
+			switch (c) {
+			case '{':
+				return parseObject();
+			case '[':
+				return parseArray();
+			case '"':
+				return parseString();
+			case 't':
+				return parseLiteral("true", Boolean.TRUE);
+			case 'f':
+				return parseLiteral("false", Boolean.FALSE);
+			case 'n':
+				return parseLiteral("null", null);
+			default:
+				if (c == '-' || (c >= '0' && c <= '9')) return parseNumber();
+				throw new IllegalArgumentException("Unexpected '" + c + "' in JSON value");
+			}
+		}
+
+		private Map<String, Object> parseObject () {
+			Map<String, Object> object = new LinkedHashMap<String, Object>();
+			index++;
+			skipWhitespace();
+			if (peek() == '}') {
+				index++;
+				return object;
+			}
+			while (true) {
+				skipWhitespace();
+				if (peek() != '"') throw new IllegalArgumentException("Expected a string as JSON object key");
+				String key = parseString();
+				skipWhitespace();
+				expect(':');
+				object.put(key, parseValue());
+				skipWhitespace();
+				if (peek() == ',') {
+					index++;
+				} else {
+					expect('}');
+					return object;
+				}
+			}
+		}
+
+		private List<Object> parseArray () {
+			List<Object> array = new ArrayList<Object>();
+			index++;
+			skipWhitespace();
+			if (peek() == ']') {
+				index++;
+				return array;
+			}
+			while (true) {
+				array.add(parseValue());
+				skipWhitespace();
+				if (peek() == ',') {
+					index++;
+				} else {
+					expect(']');
+					return array;
+				}
+			}
+		}
+
+		private String parseString () {
+			StringBuilder string = new StringBuilder();
+			index++;
+			while (true) {
+				if (index >= text.length()) throw new IllegalArgumentException("Unterminated JSON string");
+				char c = text.charAt(index++);
+				if (c == '"') return string.toString();
+				if (c != '\\') {
+					string.append(c);
+					continue;
+				}
+				if (index >= text.length()) throw new IllegalArgumentException("Unterminated JSON string");
+				char escaped = text.charAt(index++);
+				switch (escaped) {
+				case '"':
+				case '\\':
+				case '/':
+					string.append(escaped);
+					break;
+				case 'b':
+					string.append('\b');
+					break;
+				case 'f':
+					string.append('\f');
+					break;
+				case 'n':
+					string.append('\n');
+					break;
+				case 'r':
+					string.append('\r');
+					break;
+				case 't':
+					string.append('\t');
+					break;
+				case 'u':
+					if (index + 4 > text.length()) throw new IllegalArgumentException("Invalid unicode escape in JSON string");
+					try {
+						string.append((char)Integer.parseInt(text.substring(index, index + 4), 16));
+					} catch (NumberFormatException e) {
+						throw new IllegalArgumentException("Invalid unicode escape in JSON string");
+					}
+					index += 4;
+					break;
+				default:
+					throw new IllegalArgumentException("Invalid escape '\\" + escaped + "' in JSON string");
+				}
+			}
+		}
+
+		private Object parseNumber () {
+			int start = index;
+			boolean integral = true;
+			while (index < text.length()) {
+				char c = text.charAt(index);
+				if (c == '.' || c == 'e' || c == 'E')
+					integral = false;
+				else if (!(c == '-' || c == '+' || (c >= '0' && c <= '9'))) break;
+				index++;
+			}
+			String number = text.substring(start, index);
+			try {
+				if (integral) return Long.parseLong(number);
+				return Double.parseDouble(number);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid JSON number " + number);
+			}
+		}
+
+		private Object parseLiteral (String literal, Object value) {
+			if (!text.startsWith(literal, index)) throw new IllegalArgumentException("Unexpected '" + text.charAt(index) + "' in JSON value");
+			index += literal.length();
+			return value;
+		}
+
+		private void skipWhitespace () {
+			while (index < text.length() && Character.isWhitespace(text.charAt(index)))
+				index++;
+		}
+
+		private char peek () {
+			return index < text.length() ? text.charAt(index) : 0;
+		}
+
+		private void expect (char c) {
+			if (peek() != c) throw new IllegalArgumentException("Expected '" + c + "' in JSON value");
+			index++;
+		}
+	}
+}
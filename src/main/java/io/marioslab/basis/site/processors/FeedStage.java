@@ -0,0 +1,155 @@
+
+package io.marioslab.basis.site.processors;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.TimeZone;
+
+import io.marioslab.basis.site.SiteFile;
+import io.marioslab.basis.site.SiteGenerator;
+import io.marioslab.basis.site.SiteGenerator.PostBuildStage;
+import io.marioslab.basis.site.SiteGenerator.SiteGeneratorException;
+
+/** A {@link PostBuildStage} writing an Atom feed <code>feed.xml</code> to the output directory. The feed contains the most recent
+ * HTML pages that have a <code>title</code> and <code>date</code> in their metadata, and not <code>published: false</code>. The
+ * date may be a {@link Date} or a string in the format expected by <code>parseDate()</code>. The summary of an entry is the
+ * <code>description</code> metadata field, or the beginning of the text of the page's main content, see
+ * {@link Html#extractMainContent(String)}. The feed's author is given to the constructor, an entry has its own author if the page
+ * has an <code>author</code> in its metadata. Only the most recent entries are kept in memory while the generated files are
+ * streamed. **/
+public class FeedStage implements PostBuildStage {
+	private static final int SUMMARY_LENGTH = 300;
+	private static final Comparator<Entry> BY_DATE = (Entry a, Entry b) -> a.date.compareTo(b.date);
+
+	private final String baseUrl;
+	private final String title;
+	private final String author;
+	private final int maxEntries;
+	private final PriorityQueue<Entry> entries = new PriorityQueue<Entry>(BY_DATE);
+	private SiteGenerator generator;
+
+	private static class Entry {
+		final String title;
+		final String url;
+		final Date date;
+		final String summary;
+		final String author;
+
+		Entry (String title, String url, Date date, String summary, String author) {
+			this.title = title;
+			this.url = url;
+			this.date = date;
+			this.summary = summary;
+			this.author = author;
+		}
+	}
+
+	/** Constructs a new stage.
+	 * @param baseUrl the absolute URL of the site, e.g. <code>https://mysite.com/</code>, which is prepended to the path of each
+	 *           page.
+	 * @param title the title of the feed.
+	 * @param author the name of the author of the feed, which Atom requires for entries without an author of their own.
+	 * @param maxEntries the maximum number of entries in the feed. */
+	public FeedStage (String baseUrl, String title, String author, int maxEntries) {
+		if (author == null || author.trim().isEmpty()) throw new SiteGeneratorException("The feed needs an author.");
+		this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+		this.title = title;
+		this.author = author;
+		this.maxEntries = maxEntries;
+	}
+
+	@Override
+	public void begin (SiteGenerator generator) {
+		this.generator = generator;
+		entries.clear();
+	}
+
+	@Override
+	public boolean accepts (SiteFile file) {
+		return Html.isHtml(file.getOutput().getName()) && !Boolean.FALSE.equals(file.getMetadata().get("published"))
+			&& file.getMetadata().get("title") != null && getDate(file) != null;
+	}
+
+	@Override
+	public void process (SiteFile file) {
+		Date date = getDate(file);
+		if (entries.size() == maxEntries && !date.after(entries.peek().date)) return;
+
+		String summary;
+		Object description = file.getMetadata().get("description");
+		if (description != null) {
+			summary = description.toString();
+		} else {
+			try {
+				summary = Html.extractText(Html.extractMainContent(new String(file.getContent(), "UTF-8")));
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+			if (summary.length() > SUMMARY_LENGTH) summary = summary.substring(0, SUMMARY_LENGTH) + "...";
+		}
+
+		String url = baseUrl + Html.getPageUrl(generator.getRelativeOutputPath(file.getOutput()));
+		Object entryAuthor = file.getMetadata().get("author");
+		entries.add(new Entry(file.getMetadata().get("title").toString(), url, date, summary, entryAuthor != null ? entryAuthor.toString() : null));
+		if (entries.size() > maxEntries) entries.poll();
+	}
+
+	private static Date getDate (SiteFile file) {
+		Object date = file.getMetadata().get("date");
+		if (date instanceof Date) return (Date)date;
+		if (date instanceof String) {
+			try {
+				return new SimpleDateFormat("yyyy/MM/dd hh:ss").parse((String)date);
+			} catch (ParseException e) {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public void end (SiteGenerator generator) {
+		List<Entry> sorted = new ArrayList<Entry>(entries);
+		Collections.sort(sorted, Collections.reverseOrder(BY_DATE));
+		entries.clear();
+
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		String updated = format.format(sorted.isEmpty() ? new Date() : sorted.get(0).date);
+
+		File feedFile = new File(generator.getOutputDirectory(), "feed.xml");
+		try (Writer writer = Html.openWriter(feedFile)) {
+			writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+			writer.write("<feed xmlns=\"http://www.w3.org/2005/Atom\">\n");
+			writer.write("  <title>" + Html.escape(title) + "</title>\n");
+			writer.write("  <link href=\"" + Html.escape(baseUrl) + "\"/>\n");
+			writer.write("  <link rel=\"self\" href=\"" + Html.escape(baseUrl + "feed.xml") + "\"/>\n");
+			writer.write("  <id>" + Html.escape(baseUrl) + "</id>\n");
+			writer.write("  <updated>" + updated + "</updated>\n");
+			writer.write("  <author><name>" + Html.escape(author) + "</name></author>\n");
+			for (Entry entry : sorted) {
+				writer.write("  <entry>\n");
+				writer.write("    <title>" + Html.escape(entry.title) + "</title>\n");
+				writer.write("    <link href=\"" + Html.escape(entry.url) + "\"/>\n");
+				writer.write("    <id>" + Html.escape(entry.url) + "</id>\n");
+				writer.write("    <updated>" + format.format(entry.date) + "</updated>\n");
+				if (entry.author != null) writer.write("    <author><name>" + Html.escape(entry.author) + "</name></author>\n");
+				writer.write("    <summary>" + Html.escape(entry.summary) + "</summary>\n");
+				writer.write("  </entry>\n");
+			}
+			writer.write("</feed>\n");
+		} catch (IOException e) {
+			throw new SiteGeneratorException("Couldn't write feed " + feedFile.getPath() + ".", e);
+		}
+	}
+}
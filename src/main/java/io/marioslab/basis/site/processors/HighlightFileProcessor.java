@@ -0,0 +1,306 @@
+
+package io.marioslab.basis.site.processors;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import io.marioslab.basis.site.SiteFile;
+import io.marioslab.basis.site.SiteFileProcessor;
+import io.marioslab.basis.site.SiteGenerator.SiteGeneratorException;
+
+/**
+ * <p>
+ * Highlights the code blocks in HTML files at build time, so pages don't need to highlight code in the browser. A code block is a
+ * <code>&lt;pre&gt;&lt;code class="language-x"&gt;</code> or <code>lang-x</code> element, where <code>x</code> is one of the supported languages:
+ * <code>java</code>, <code>kotlin</code>, <code>javascript</code>, <code>typescript</code>, <code>c</code>, <code>cpp</code>,
+ * <code>csharp</code>, <code>go</code>, <code>python</code>, <code>bash</code> and <code>json</code>. Code blocks in other
+ * languages, or that already contain markup, are left as is. Must be added after the {@link TemplateFileProcessor}, so it sees the
+ * rendered output of templates.
+ * </p>
+ *
+ * <p>
+ * Keywords, strings, comments and numbers are wrapped in <code>span</code> elements with the classes <code>hl-keyword</code>,
+ * <code>hl-string</code>, <code>hl-comment</code> and <code>hl-number</code>, which can be styled via CSS.
+ * </p>
+ *
+ * <p>
+ * Highlighted code blocks are cached in memory and in a cache directory by a hash of their code, language and
+ * {@link #TOKENIZER_VERSION}, so a code block is only highlighted once, no matter how many pages and builds it appears in. The
+ * memory cache keeps the {@link #MAX_CACHED_BLOCKS} most recently used code blocks, so it doesn't grow with every edit in watch
+ * mode.
+ * </p>
+ */
+public class HighlightFileProcessor implements SiteFileProcessor {
+	/** Part of the cache key of each code block. Must be increased whenever the highlighted output changes, e.g. when a language or
+	 * the tokenizer is modified, so code blocks highlighted by previous versions aren't read from the cache directory. **/
+	public static final int TOKENIZER_VERSION = 1;
+	/** The maximum number of highlighted code blocks kept in memory. Less recently used code blocks are read from the cache
+	 * directory again. **/
+	public static final int MAX_CACHED_BLOCKS = 4096;
+	private static final Pattern CODE_BLOCK = Pattern.compile(
+		"(<pre(?:\\s[^>]*)?>\\s*<code\\s[^>]*?class\\s*=\\s*\"(?:[^\"]*\\s)?(?:language|lang)-([\\w+#-]+)[^\"]*\"[^>]*>)(.*?)(</code>\\s*</pre>)",
+		Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	private static final Map<String, Language> LANGUAGES = new HashMap<String, Language>();
+
+	static {
+		Language java = new Language("abstract assert boolean break byte case catch char class const continue default do double else enum "
+			+ "extends final finally float for goto if implements import instanceof int interface long native new package private "
+			+ "protected public return short static strictfp super switch synchronized this throw throws transient try var void volatile "
+			+ "while true false null", "//", true, "\"'");
+		Language kotlin = new Language("as break class continue do else false for fun if in interface is null object package return super "
+			+ "this throw true try typealias typeof val var when while import private protected public internal override open abstract "
+			+ "data sealed companion lateinit", "//", true, "\"'");
+		String jsKeywords = "async await break case catch class const continue debugger default delete do else export extends false "
+			+ "finally for function if import in instanceof let new null of return static super switch this throw true try typeof "
+			+ "undefined var void while with yield";
+		Language javascript = new Language(jsKeywords, "//", true, "\"'`");
+		Language typescript = new Language(jsKeywords + " abstract any as boolean declare enum implements interface keyof namespace "
+			+ "never number private protected public readonly string type unknown", "//", true, "\"'`");
+		String cKeywords = "auto break case char const continue default do double else enum extern float for goto if inline int long "
+			+ "register return short signed sizeof static struct switch typedef union unsigned void volatile while";
+		Language c = new Language(cKeywords + " NULL", "//", true, "\"'");
+		Language cpp = new Language(cKeywords + " bool class constexpr delete false namespace new nullptr operator private protected public "
+			+ "template this throw true try catch typename using virtual", "//", true, "\"'");
+		Language csharp = new Language("abstract as base bool break byte case catch char checked class const continue decimal default "
+			+ "delegate do double else enum event explicit extern false finally fixed float for foreach goto if implicit in int interface "
+			+ "internal is lock long namespace new null object operator out override params private protected public readonly ref "
+			+ "return sbyte sealed short sizeof stackalloc static string struct switch this throw true try typeof uint ulong unchecked "
+			+ "unsafe ushort using var virtual void volatile while", "//", true, "\"'");
+		Language go = new Language("break case chan const continue default defer else fallthrough false for func go goto if import "
+			+ "interface map nil package range return select struct switch true type var", "//", true, "\"'`");
+		Language python = new Language("False None True and as assert async await break class continue def del elif else except "
+			+ "finally for from global if import in is lambda nonlocal not or pass raise return try while with yield", "#", false, "\"'", true);
+		Language bash = new Language("case do done elif else esac export fi for function if in local return select then until while",
+			"#", false, "\"'");
+		Language json = new Language("true false null", null, false, "\"");
+
+		LANGUAGES.put("java", java);
+		LANGUAGES.put("kotlin", kotlin);
+		LANGUAGES.put("kt", kotlin);
+		LANGUAGES.put("javascript", javascript);
+		LANGUAGES.put("js", javascript);
+		LANGUAGES.put("typescript", typescript);
+		LANGUAGES.put("ts", typescript);
+		LANGUAGES.put("c", c);
+		LANGUAGES.put("cpp", cpp);
+		LANGUAGES.put("c++", cpp);
+		LANGUAGES.put("csharp", csharp);
+		LANGUAGES.put("cs", csharp);
+		LANGUAGES.put("c#", csharp);
+		LANGUAGES.put("go", go);
+		LANGUAGES.put("python", python);
+		LANGUAGES.put("py", python);
+		LANGUAGES.put("bash", bash);
+		LANGUAGES.put("sh", bash);
+		LANGUAGES.put("shell", bash);
+		LANGUAGES.put("json", json);
+	}
+
+	private final File cacheDirectory;
+	/** The most recently used highlighted code blocks by hash, in access order. **/
+	@SuppressWarnings("serial")
+	private final Map<String, String> cache = Collections.synchronizedMap(new LinkedHashMap<String, String>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry (Map.Entry<String, String> eldest) {
+			return size() > MAX_CACHED_BLOCKS;
+		}
+	});
+
+	/** The syntax of a language, as far as needed to highlight it. **/
+	private static class Language {
+		final Set<String> keywords;
+		final String lineComment;
+		final boolean blockComments;
+		final String quotes;
+		final boolean tripleQuotes;
+
+		Language (String keywords, String lineComment, boolean blockComments, String quotes) {
+			this(keywords, lineComment, blockComments, quotes, false);
+		}
+
+		Language (String keywords, String lineComment, boolean blockComments, String quotes, boolean tripleQuotes) {
+			this.keywords = new HashSet<String>(Arrays.asList(keywords.split(" ")));
+			this.lineComment = lineComment;
+			this.blockComments = blockComments;
+			this.quotes = quotes;
+			this.tripleQuotes = tripleQuotes;
+		}
+	}
+
+	/** Constructs a new processor.
+	 * @param cacheDirectory the directory to store highlighted code blocks in, or null to only cache them in memory. Created if it
+	 *           doesn't exist. */
+	public HighlightFileProcessor (File cacheDirectory) {
+		this.cacheDirectory = cacheDirectory;
+	}
+
+	@Override
+	public String processOutputFileName (String fileName) {
+		return fileName;
+	}
+
+	@Override
+	public void process (SiteFile file) {
+		if (!Html.isHtml(file.getOutput().getName())) return;
+
+		String html;
+		try {
+			html = new String(file.getContent(), "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		if (!html.contains("<pre") && !html.contains("<PRE")) return;
+
+		Matcher matcher = CODE_BLOCK.matcher(html);
+		StringBuffer result = null;
+		while (matcher.find()) {
+			Language language = LANGUAGES.get(matcher.group(2).toLowerCase());
+			String code = matcher.group(3);
+			if (language == null || code.indexOf('<') >= 0) continue;
+
+			if (result == null) result = new StringBuffer(html.length() + html.length() / 2);
+			String highlighted = highlight(Html.unescape(code), matcher.group(2).toLowerCase(), language);
+			matcher.appendReplacement(result, Matcher.quoteReplacement(matcher.group(1) + highlighted + matcher.group(4)));
+		}
+		if (result == null) return;
+		matcher.appendTail(result);
+
+		try {
+			file.setContent(result.toString().getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** Returns the highlighted code from the memory or disk cache, or highlights it and stores it in the caches. **/
+	private String highlight (String code, String languageName, Language language) {
+		String hash;
+		try {
+			hash = ImageFileProcessor.hash((TOKENIZER_VERSION + "\n" + languageName + "\n" + code).getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+
+		String highlighted = cache.get(hash);
+		if (highlighted != null) return highlighted;
+
+		File cacheFile = cacheDirectory != null ? new File(cacheDirectory, hash + ".html") : null;
+		if (cacheFile != null && cacheFile.exists()) {
+			try {
+				highlighted = new String(Files.readAllBytes(cacheFile.toPath()), "UTF-8");
+			} catch (IOException e) {
+				// Fall through and highlight the code again
+			}
+		}
+
+		if (highlighted == null) {
+			highlighted = highlight(code, language);
+			if (cacheFile != null) write(highlighted, cacheFile);
+		}
+		cache.put(hash, highlighted);
+		return highlighted;
+	}
+
+	private void write (String highlighted, File file) {
+		if (!cacheDirectory.exists() && !cacheDirectory.mkdirs() && !cacheDirectory.exists())
+			throw new SiteGeneratorException("Couldn't create cache directory " + cacheDirectory.getPath() + ".");
+		File tempFile = new File(file.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+		try {
+			Files.write(tempFile.toPath(), highlighted.getBytes("UTF-8"));
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			tempFile.delete();
+			throw new SiteGeneratorException("Couldn't write cache file " + file.getPath() + ".", e);
+		}
+	}
+
+	/** Highlights the code, returning HTML with keywords, strings, comments and numbers wrapped in <code>span</code> elements.
+	 * All other text is escaped. **/
+	private static String highlight (String code, Language language) {
+		StringBuilder result = new StringBuilder(code.length() * 2);
+		int i = 0, n = code.length();
+		while (i < n) {
+			char c = code.charAt(i);
+			int end;
+			if (language.blockComments && code.startsWith("/*", i)) {
+				end = code.indexOf("*/", i + 2);
+				end = end < 0 ? n : end + 2;
+				appendSpan(result, "hl-comment", code, i, end);
+			} else if (language.lineComment != null && code.startsWith(language.lineComment, i)
+				&& (!language.lineComment.equals("#") || i == 0 || !isIdentifierPart(code.charAt(i - 1)))) {
+				end = code.indexOf('\n', i);
+				end = end < 0 ? n : end;
+				appendSpan(result, "hl-comment", code, i, end);
+			} else if (language.quotes.indexOf(c) >= 0) {
+				end = endOfString(code, i, language);
+				appendSpan(result, "hl-string", code, i, end);
+			} else if (Character.isDigit(c) && (i == 0 || !isIdentifierPart(code.charAt(i - 1)))) {
+				end = i + 1;
+				while (end < n && (isIdentifierPart(code.charAt(end)) || (code.charAt(end) == '.' && end + 1 < n && Character.isDigit(code.charAt(end + 1)))))
+					end++;
+				appendSpan(result, "hl-number", code, i, end);
+			} else if (Character.isJavaIdentifierStart(c)) {
+				end = i + 1;
+				while (end < n && isIdentifierPart(code.charAt(end)))
+					end++;
+				String word = code.substring(i, end);
+				if (language.keywords.contains(word) && (i == 0 || code.charAt(i - 1) != '.'))
+					appendSpan(result, "hl-keyword", code, i, end);
+				else
+					result.append(word);
+			} else {
+				end = i + 1;
+				result.append(Html.escape(String.valueOf(c)));
+			}
+			i = end;
+		}
+		return result.toString();
+	}
+
+	/** Returns the index after the string starting at the given index. Strings end at the closing quote, or at the end of the line
+	 * unless they are triple quoted or quoted with a backtick. Quotes escaped with a backslash don't end the string. **/
+	private static int endOfString (String code, int start, Language language) {
+		char quote = code.charAt(start);
+		String triple = new String(new char[] {quote, quote, quote});
+		boolean multiLine = quote == '`';
+		int i = start + 1;
+		if (language.tripleQuotes && code.startsWith(triple, start)) {
+			int end = code.indexOf(triple, start + 3);
+			return end < 0 ? code.length() : end + 3;
+		}
+		while (i < code.length()) {
+			char c = code.charAt(i);
+			if (c == '\\')
+				i += 2;
+			else if (c == quote)
+				return i + 1;
+			else if (c == '\n' && !multiLine)
+				return i;
+			else
+				i++;
+		}
+		return code.length();
+	}
+
+	private static boolean isIdentifierPart (char c) {
+		return Character.isJavaIdentifierPart(c);
+	}
+
+	private static void appendSpan (StringBuilder result, String cssClass, String code, int start, int end) {
+		result.append("<span class=\"").append(cssClass).append("\">");
+		result.append(Html.escape(code.substring(start, Math.min(end, code.length()))));
+		result.append("</span>");
+	}
+}
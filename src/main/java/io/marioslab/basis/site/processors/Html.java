@@ -0,0 +1,234 @@
+
+package io.marioslab.basis.site.processors;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+
+/** Helpers for working with generated HTML and writing XML and JSON, used by the processors and post-build stages. **/
+class Html {
+	private Html () {
+	}
+
+	/** Returns the text content of the HTML, skipping tags, comments, and the content of <code>script</code> and
+	 * <code>style</code> elements. Entities are decoded, runs of whitespace are collapsed to a single space. **/
+	static String extractText (String html) {
+		StringBuilder text = new StringBuilder(html.length() / 2);
+		int i = 0, n = html.length();
+		while (i < n) {
+			char c = html.charAt(i);
+			if (c == '<') {
+				if (html.startsWith("<!--", i)) {
+					int end = html.indexOf("-->", i + 4);
+					i = end < 0 ? n : end + 3;
+					continue;
+				}
+				int end = html.indexOf('>', i);
+				if (end < 0) break;
+				String tag = html.substring(i + 1, end).trim().toLowerCase();
+				i = end + 1;
+				if (tag.startsWith("script") || tag.startsWith("style")) {
+					String closing = "</" + (tag.startsWith("script") ? "script" : "style");
+					int close = indexOfIgnoreCase(html, closing, i);
+					end = close < 0 ? -1 : html.indexOf('>', close);
+					i = end < 0 ? n : end + 1;
+				}
+				appendSpace(text);
+			} else if (c == '&') {
+				int end = html.indexOf(';', i);
+				if (end > i && end - i <= 10) {
+					appendText(text, decodeEntity(html.substring(i + 1, end)));
+					i = end + 1;
+				} else {
+					text.append(c);
+					i++;
+				}
+			} else if (Character.isWhitespace(c)) {
+				appendSpace(text);
+				i++;
+			} else {
+				text.append(c);
+				i++;
+			}
+		}
+		return text.toString().trim();
+	}
+
+	private static void appendSpace (StringBuilder text) {
+		if (text.length() > 0 && text.charAt(text.length() - 1) != ' ') text.append(' ');
+	}
+
+	private static void appendText (StringBuilder text, String value) {
+		if (value.equals(" "))
+			appendSpace(text);
+		else
+			text.append(value);
+	}
+
+	private static int indexOfIgnoreCase (String string, String search, int start) {
+		for (int i = start, n = string.length() - search.length(); i <= n; i++) {
+			if (string.regionMatches(true, i, search, 0, search.length())) return i;
+		}
+		return -1;
+	}
+
+	/** Decodes the named or numeric entity, given without the leading <code>&amp;</code> and trailing <code>;</code>. Unknown
+	 * entities are returned as is. **/
+	static String decodeEntity (String entity) {
+		switch (entity) {
+		case "lt":
+			return "<";
+		case "gt":
+			return ">";
+		case "amp":
+			return "&";
+		case "quot":
+			return "\"";
+		case "apos":
+			return "'";
+		case "nbsp":
+			return " ";
+		}
+		try {
+			if (entity.startsWith("#x") || entity.startsWith("#X"))
+				return new String(Character.toChars(Integer.parseInt(entity.substring(2), 16)));
+			else if (entity.startsWith("#")) return new String(Character.toChars(Integer.parseInt(entity.substring(1))));
+		} catch (IllegalArgumentException e) {
+			// Fall through, not a valid numeric entity
+		}
+		return "&" + entity + ";";
+	}
+
+	/** Decodes all entities in the text. **/
+	static String unescape (String text) {
+		if (text.indexOf('&') < 0) return text;
+		StringBuilder result = new StringBuilder(text.length());
+		int i = 0, n = text.length();
+		while (i < n) {
+			char c = text.charAt(i);
+			int end = c == '&' ? text.indexOf(';', i) : -1;
+			if (end > i && end - i <= 10) {
+				result.append(decodeEntity(text.substring(i + 1, end)));
+				i = end + 1;
+			} else {
+				result.append(c);
+				i++;
+			}
+		}
+		return result.toString();
+	}
+
+	/** Escapes the characters that are special in HTML and XML text and attribute values. **/
+	static String escape (String text) {
+		StringBuilder result = new StringBuilder(text.length() + 16);
+		for (int i = 0, n = text.length(); i < n; i++) {
+			char c = text.charAt(i);
+			switch (c) {
+			case '<':
+				result.append("&lt;");
+				break;
+			case '>':
+				result.append("&gt;");
+				break;
+			case '&':
+				result.append("&amp;");
+				break;
+			case '"':
+				result.append("&quot;");
+				break;
+			case '\'':
+				result.append("&#39;");
+				break;
+			default:
+				result.append(c);
+			}
+		}
+		return result.toString();
+	}
+
+	/** Returns the text as a quoted JSON string. **/
+	static String quoteJson (String text) {
+		StringBuilder result = new StringBuilder(text.length() + 2);
+		result.append('"');
+		for (int i = 0, n = text.length(); i < n; i++) {
+			char c = text.charAt(i);
+			switch (c) {
+			case '"':
+				result.append("\\\"");
+				break;
+			case '\\':
+				result.append("\\\\");
+				break;
+			case '\n':
+				result.append("\\n");
+				break;
+			case '\r':
+				result.append("\\r");
+				break;
+			case '\t':
+				result.append("\\t");
+				break;
+			default:
+				if (c < 0x20)
+					result.append(String.format("\\u%04x", (int)c));
+				else
+					result.append(c);
+			}
+		}
+		result.append('"');
+		return result.toString();
+	}
+
+	/** Returns the content of the page's <code>title</code> element, or null if the page has no title. **/
+	static String extractTitle (String html) {
+		int start = indexOfIgnoreCase(html, "<title", 0);
+		if (start < 0) return null;
+		start = html.indexOf('>', start);
+		if (start < 0) return null;
+		int end = indexOfIgnoreCase(html, "</title", start);
+		if (end < 0) return null;
+		return extractText(html.substring(start + 1, end));
+	}
+
+	/** Returns the content of the page's first <code>article</code> element, or its <code>main</code> or <code>body</code> element
+	 * if it has no article, or the page itself if it has neither. **/
+	static String extractMainContent (String html) {
+		for (String element : new String[] {"article", "main", "body"}) {
+			int start = indexOfIgnoreCase(html, "<" + element, 0);
+			while (start >= 0) {
+				// Make sure we found the element, and not one starting with the same name
+				char next = start + element.length() + 1 < html.length() ? html.charAt(start + element.length() + 1) : '>';
+				if (next == '>' || Character.isWhitespace(next)) break;
+				start = indexOfIgnoreCase(html, "<" + element, start + 1);
+			}
+			if (start < 0) continue;
+			start = html.indexOf('>', start);
+			if (start < 0) continue;
+			int end = indexOfIgnoreCase(html, "</" + element, start);
+			return html.substring(start + 1, end < 0 ? html.length() : end);
+		}
+		return html;
+	}
+
+	/** Returns whether the file name denotes an HTML file. **/
+	static boolean isHtml (String fileName) {
+		String name = fileName.toLowerCase();
+		return name.endsWith(".html") || name.endsWith(".htm");
+	}
+
+	/** Returns the URL of a page relative to the site root, given its output path relative to the output directory. Index files
+	 * are mapped to their directory, e.g. <code>blog/hello-world/index.html</code> becomes <code>blog/hello-world/</code>. **/
+	static String getPageUrl (String relativeOutputPath) {
+		if (relativeOutputPath.equals("index.html")) return "";
+		if (relativeOutputPath.endsWith("/index.html")) return relativeOutputPath.substring(0, relativeOutputPath.length() - "index.html".length());
+		return relativeOutputPath;
+	}
+
+	/** Opens a buffered UTF-8 writer to the file. **/
+	static Writer openWriter (File file) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file.toPath()), "UTF-8"));
+	}
+}
@@ -0,0 +1,384 @@
+
+package io.marioslab.basis.site.processors;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import io.marioslab.basis.site.SiteFile;
+import io.marioslab.basis.site.SiteFileProcessor;
+import io.marioslab.basis.site.SiteGenerator;
+import io.marioslab.basis.site.SiteGenerator.SiteGeneratorException;
+import io.marioslab.basis.site.processors.TemplateFileProcessor.FunctionProvider;
+import io.marioslab.basis.template.TemplateContext;
+
+/**
+ * <p>
+ * Processes all JPEG and PNG files. For each configured width that is smaller than the width of the image, a resized derivative is
+ * written next to the output file, with the width inserted before the extension, e.g. <code>image-480w.jpg</code>. The original
+ * image is written unchanged.
+ * </p>
+ *
+ * <p>
+ * Derivatives are stored in a cache directory under a name derived from a hash of the image content, the width and the encoding
+ * settings. Images that haven't changed since a previous run are thus never decoded or encoded again. Derivatives are encoded in
+ * parallel in the background while the build continues, and copied to the output at the end of the build. Processors of sites
+ * built concurrently never encode the same image twice.
+ * </p>
+ *
+ * <p>
+ * Use the {@link ImageFunctionProvider} to emit <code>srcset</code> attribute values for images in templates.
+ * </p>
+ */
+public class ImageFileProcessor implements SiteFileProcessor {
+	private final File cacheDirectory;
+	private final int[] widths;
+	private final float quality;
+	private final ExecutorService executor;
+	private final Semaphore inFlight;
+	private final Queue<PendingImage> pending = new ConcurrentLinkedQueue<PendingImage>();
+
+	/** The derivatives currently being encoded by any processor, keyed by cache file and widths. **/
+	private static final Map<String, Future<?>> encodings = new ConcurrentHashMap<String, Future<?>>();
+
+	/** An image whose derivatives are being encoded, and must be copied to the output at the end of the build. **/
+	private static class PendingImage {
+		final Future<?> encoding;
+		final String name;
+		final File output;
+		final String hash;
+		final List<Integer> widths;
+
+		PendingImage (Future<?> encoding, String name, File output, String hash, List<Integer> widths) {
+			this.encoding = encoding;
+			this.name = name;
+			this.output = output;
+			this.hash = hash;
+			this.widths = widths;
+		}
+	}
+
+	/** Constructs a new processor with its own pool of worker threads, one per CPU core.
+	 * @param cacheDirectory the directory to store derivatives in. Created if it doesn't exist.
+	 * @param widths the widths in pixels of the derivatives to generate for each image.
+	 * @param quality the JPEG compression quality of derivatives, between 0 and 1. */
+	public ImageFileProcessor (File cacheDirectory, int[] widths, float quality) {
+		this(cacheDirectory, widths, quality, Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), (Runnable runnable) -> {
+			Thread thread = new Thread(runnable, "ImageFileProcessor");
+			thread.setDaemon(true);
+			return thread;
+		}));
+	}
+
+	/** Constructs a new processor encoding derivatives on the given executor, which may be shared with other processors, e.g. of
+	 * other sites. See {@link #ImageFileProcessor(File, int[], float)}. */
+	public ImageFileProcessor (File cacheDirectory, int[] widths, float quality, ExecutorService executor) {
+		this.cacheDirectory = cacheDirectory;
+		this.widths = widths.clone();
+		Arrays.sort(this.widths);
+		this.quality = quality;
+		this.executor = executor;
+		this.inFlight = new Semaphore(Runtime.getRuntime().availableProcessors() * 2);
+	}
+
+	@Override
+	public String processOutputFileName (String fileName) {
+		return fileName;
+	}
+
+	@Override
+	public void process (SiteFile file) {
+		if (!isImage(file.getInput().getName()) || widths.length == 0) return;
+
+		int imageWidth = readWidth(file.getContent());
+		if (imageWidth < 0) return;
+
+		// Copy derivatives from the cache, and collect those that need to be encoded.
+		String hash = hash(file.getContent());
+		List<Integer> missingWidths = new ArrayList<Integer>();
+		for (int width : getDerivativeWidths(imageWidth)) {
+			File cached = getCachedFile(hash, width, file.getInput().getName());
+			if (cached.exists())
+				copy(cached, getDerivativeFile(file.getOutput(), width));
+			else
+				missingWidths.add(width);
+		}
+		if (missingWidths.isEmpty()) return;
+
+		if (!cacheDirectory.exists() && !cacheDirectory.mkdirs())
+			throw new SiteGeneratorException("Couldn't create cache directory " + cacheDirectory.getPath() + ".");
+
+		// Encode the missing derivatives in the background, unless another processor, e.g. of another site
+		// built concurrently, is already encoding them. The derivatives are copied to the output at the end of
+		// the build.
+		String key = new File(cacheDirectory, hash).getPath() + missingWidths;
+		FutureTask<Void> encoding = new FutureTask<Void>( () -> {
+			try {
+				BufferedImage image = ImageIO.read(new ByteArrayInputStream(file.getContent()));
+				if (image == null) throw new SiteGeneratorException("Couldn't decode image " + file.getInput().getPath() + ".");
+				for (int width : missingWidths)
+					write(resize(image, width, isJpeg(file.getInput().getName())), getCachedFile(hash, width, file.getInput().getName()));
+				return null;
+			} catch (Throwable t) {
+				throw new SiteGeneratorException("Couldn't generate derivatives of " + file.getInput().getPath() + ".", t);
+			} finally {
+				encodings.remove(key);
+				inFlight.release();
+			}
+		});
+		Future<?> existing = encodings.putIfAbsent(key, encoding);
+		if (existing == null) {
+			// Limit the number of images in flight, as each holds on to the image's content and decoded pixels.
+			try {
+				inFlight.acquire();
+			} catch (InterruptedException e) {
+				encodings.remove(key);
+				Thread.currentThread().interrupt();
+				throw new SiteGeneratorException("Interrupted while generating derivatives of " + file.getInput().getPath() + ".", e);
+			}
+			executor.execute(encoding);
+		}
+		pending.add(new PendingImage(existing != null ? existing : encoding, file.getInput().getName(), file.getOutput(), hash, missingWidths));
+	}
+
+	@Override
+	public void buildStarted (SiteGenerator generator) {
+		// Derivatives still encoding after a failed build will finish on their own.
+		pending.clear();
+	}
+
+	/** Waits for all derivatives of the build to be encoded, and copies them to the output directory. Throws a
+	 * {@link SiteGeneratorException} if encoding any of them failed. **/
+	@Override
+	public void buildFinished (SiteGenerator generator) {
+		SiteGeneratorException error = null;
+		for (PendingImage image : pending) {
+			try {
+				image.encoding.get();
+				for (int width : image.widths)
+					copy(getCachedFile(image.hash, width, image.name), getDerivativeFile(image.output, width));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SiteGeneratorException("Interrupted while generating image derivatives.", e);
+			} catch (ExecutionException e) {
+				if (error == null) error = (SiteGeneratorException)e.getCause();
+			}
+		}
+		pending.clear();
+		if (error != null) throw error;
+	}
+
+	/** Returns the widths of the derivatives generated for an image of the given width, in ascending order. **/
+	public List<Integer> getDerivativeWidths (int imageWidth) {
+		List<Integer> result = new ArrayList<Integer>();
+		for (int width : widths) {
+			if (width < imageWidth) result.add(width);
+		}
+		return result;
+	}
+
+	/** Returns the file name of the derivative of the given width, e.g. <code>image-480w.jpg</code> for <code>image.jpg</code>. **/
+	public static String getDerivativeName (String fileName, int width) {
+		int dot = fileName.lastIndexOf('.');
+		if (dot < 0) return fileName + "-" + width + "w";
+		return fileName.substring(0, dot) + "-" + width + "w" + fileName.substring(dot);
+	}
+
+	/** Returns whether the file is an image processed by this processor, based on its extension. **/
+	public static boolean isImage (String fileName) {
+		String name = fileName.toLowerCase();
+		return isJpeg(name) || name.endsWith(".png");
+	}
+
+	private static boolean isJpeg (String fileName) {
+		String name = fileName.toLowerCase();
+		return name.endsWith(".jpg") || name.endsWith(".jpeg");
+	}
+
+	/** Returns the width of the encoded image by reading its header, or -1 if the image format is not supported. **/
+	static int readWidth (byte[] content) {
+		try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(content))) {
+			return readWidth(in);
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	/** Returns the width of the image file by reading only its header, or -1 if the image format is not supported. Throws an
+	 * {@link IOException} if the file can't be read. **/
+	static int readWidth (File file) throws IOException {
+		try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+			if (in == null) throw new IOException("Couldn't open " + file.getPath() + ".");
+			try {
+				return readWidth(in);
+			} catch (IOException e) {
+				return -1;
+			}
+		}
+	}
+
+	private static int readWidth (ImageInputStream in) throws IOException {
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+		if (!readers.hasNext()) return -1;
+		ImageReader reader = readers.next();
+		try {
+			reader.setInput(in, true, true);
+			return reader.getWidth(0);
+		} finally {
+			reader.dispose();
+		}
+	}
+
+	private static File getDerivativeFile (File output, int width) {
+		return new File(output.getParentFile(), getDerivativeName(output.getName(), width));
+	}
+
+	private File getCachedFile (String hash, int width, String fileName) {
+		if (isJpeg(fileName))
+			return new File(cacheDirectory, hash + "-" + width + "-q" + Math.round(quality * 100) + ".jpg");
+		else
+			return new File(cacheDirectory, hash + "-" + width + ".png");
+	}
+
+	/** Scales the image down to the given width in steps of at most half the size, which avoids the aliasing of scaling down
+	 * large images in one step. **/
+	private static BufferedImage resize (BufferedImage image, int width, boolean opaque) {
+		int height = Math.max(1, Math.round(image.getHeight() * (width / (float)image.getWidth())));
+		int type = opaque || !image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB;
+		BufferedImage current = image;
+		int currentWidth = image.getWidth(), currentHeight = image.getHeight();
+		do {
+			currentWidth = Math.max(width, currentWidth / 2);
+			currentHeight = Math.max(height, currentHeight / 2);
+			BufferedImage scaled = new BufferedImage(currentWidth, currentHeight, type);
+			Graphics2D graphics = scaled.createGraphics();
+			graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+			graphics.drawImage(current, 0, 0, currentWidth, currentHeight, null);
+			graphics.dispose();
+			current = scaled;
+		} while (currentWidth != width || currentHeight != height);
+		return current;
+	}
+
+	/** Encodes the image to a temporary file and moves it to its final location, so concurrent builds never see partially written
+	 * files in the cache. **/
+	private void write (BufferedImage image, File file) {
+		File tempFile = new File(file.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+		try {
+			if (file.getName().endsWith(".jpg")) {
+				ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+				try (ImageOutputStream out = ImageIO.createImageOutputStream(tempFile)) {
+					ImageWriteParam param = writer.getDefaultWriteParam();
+					param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+					param.setCompressionQuality(quality);
+					writer.setOutput(out);
+					writer.write(null, new IIOImage(image, null, null), param);
+				} finally {
+					writer.dispose();
+				}
+			} else {
+				ImageIO.write(image, "png", tempFile);
+			}
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			tempFile.delete();
+			throw new SiteGeneratorException("Couldn't write image " + file.getPath() + ".", e);
+		}
+	}
+
+	private static void copy (File from, File to) {
+		try {
+			Files.copy(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			throw new SiteGeneratorException("Couldn't copy " + from.getPath() + " to " + to.getPath() + ".", e);
+		}
+	}
+
+	static String hash (byte[] content) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(content);
+			StringBuilder builder = new StringBuilder(digest.length * 2);
+			for (byte b : digest)
+				builder.append(String.format("%02x", b & 0xff));
+			return builder.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * <p>
+	 * A {@link FunctionProvider} adding the following function to the {@link TemplateContext}:
+	 * </p>
+	 *
+	 * <ul>
+	 * <li><code>String srcset(String path)</code>: returns the value for the <code>srcset</code> attribute of an
+	 * <code>&lt;img&gt;</code> tag, listing the derivatives generated by the {@link ImageFileProcessor} and the original image
+	 * with their widths, e.g. <code>image-480w.jpg 480w, image.jpg 1200w</code>. The path is given relative to the file being
+	 * evaluated, and is used as the URL prefix of the derivatives.</li>
+	 * </ul>
+	 **/
+	public static class ImageFunctionProvider implements FunctionProvider {
+		private final ImageFileProcessor processor;
+
+		public ImageFunctionProvider (ImageFileProcessor processor) {
+			this.processor = processor;
+		}
+
+		@Override
+		public void provide (SiteFile file, TemplateContext context) {
+			context.set("srcset", (Function<String, String>) (String path) -> {
+				File image = new File(file.getInput().getParentFile(), path);
+				int imageWidth;
+				try {
+					imageWidth = readWidth(image);
+				} catch (IOException e) {
+					throw new SiteGeneratorException("Couldn't read image " + image.getPath() + ".", e);
+				}
+				if (imageWidth < 0) throw new SiteGeneratorException("Unsupported image format " + image.getPath() + ".");
+
+				int slash = path.lastIndexOf('/');
+				String directory = path.substring(0, slash + 1);
+				String name = path.substring(slash + 1);
+				StringBuilder srcset = new StringBuilder();
+				List<Integer> widths = isImage(name) ? processor.getDerivativeWidths(imageWidth) : new ArrayList<Integer>();
+				for (int width : widths) {
+					srcset.append(directory).append(getDerivativeName(name, width)).append(' ').append(width).append("w, ");
+				}
+				srcset.append(path).append(' ').append(imageWidth).append('w');
+				return srcset.toString();
+			});
+		}
+	}
+}
@@ -0,0 +1,194 @@
+
+package io.marioslab.basis.site.processors;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import io.marioslab.basis.site.SiteFile;
+import io.marioslab.basis.site.SiteGenerator;
+import io.marioslab.basis.site.SiteGenerator.PostBuildStage;
+import io.marioslab.basis.site.SiteGenerator.SiteGeneratorException;
+
+/**
+ * <p>
+ * A {@link PostBuildStage} that builds an inverted index of the text of all generated HTML pages, which can be searched on the
+ * client without downloading the pages. Pages with <code>published: false</code> in their metadata are skipped.
+ * </p>
+ *
+ * <p>
+ * The text of each page is split into lower case tokens of letters and digits. The index is written to a directory in the output
+ * directory, <code>search/</code> by default:
+ * </p>
+ *
+ * <ul>
+ * <li><code>index.json</code>: <code>{"prefixLength": 2, "documents": [[url, title], ...], "shards": [shard, ...]}</code>. The
+ * document id of a page is its position in the <code>documents</code> array.</li>
+ * <li><code>&lt;shard&gt;.json</code>: <code>{token: [documentId, ...], ...}</code> for all tokens starting with the shard's
+ * prefix. The shard name of a token is its first <code>prefixLength</code> characters. Characters other than <code>a-z</code>
+ * and <code>0-9</code> are encoded as <code>_</code> followed by their hexadecimal code point.</li>
+ * </ul>
+ *
+ * <p>
+ * A client loads <code>index.json</code> once, then lazily loads the shards of the tokens it searches for.
+ * </p>
+ */
+public class SearchIndexStage implements PostBuildStage {
+	private static final int MAX_TOKEN_LENGTH = 32;
+
+	private final String directory;
+	private final int prefixLength;
+	private final List<String[]> documents = new ArrayList<String[]>();
+	private final Map<String, List<Integer>> postings = new TreeMap<String, List<Integer>>();
+	private SiteGenerator generator;
+
+	/** Constructs a new stage writing the index to the <code>search/</code> directory, sharded by 2 character prefixes. **/
+	public SearchIndexStage () {
+		this("search", 2);
+	}
+
+	/** Constructs a new stage.
+	 * @param directory the directory relative to the output directory to write the index to.
+	 * @param prefixLength the number of characters of a token determining its shard. */
+	public SearchIndexStage (String directory, int prefixLength) {
+		this.directory = directory;
+		this.prefixLength = prefixLength;
+	}
+
+	@Override
+	public void begin (SiteGenerator generator) {
+		this.generator = generator;
+		documents.clear();
+		postings.clear();
+	}
+
+	@Override
+	public boolean accepts (SiteFile file) {
+		return Html.isHtml(file.getOutput().getName()) && !Boolean.FALSE.equals(file.getMetadata().get("published"));
+	}
+
+	@Override
+	public void process (SiteFile file) {
+		String html;
+		try {
+			html = new String(file.getContent(), "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+
+		Object title = file.getMetadata().get("title");
+		if (title == null) title = Html.extractTitle(html);
+		int documentId = documents.size();
+		documents.add(new String[] {Html.getPageUrl(generator.getRelativeOutputPath(file.getOutput())), title == null ? "" : title.toString()});
+
+		for (String token : tokenize(Html.extractText(html))) {
+			List<Integer> documentIds = postings.get(token);
+			if (documentIds == null) postings.put(token, documentIds = new ArrayList<Integer>());
+			documentIds.add(documentId);
+		}
+	}
+
+	/** Returns the distinct tokens of the text, in order of their first occurrence. **/
+	static Set<String> tokenize (String text) {
+		Set<String> tokens = new LinkedHashSet<String>();
+		String lowerCase = text.toLowerCase();
+		int start = -1;
+		for (int i = 0, n = lowerCase.length(); i <= n; i++) {
+			boolean isTokenChar = i < n && Character.isLetterOrDigit(lowerCase.charAt(i));
+			if (isTokenChar && start < 0) {
+				start = i;
+			} else if (!isTokenChar && start >= 0) {
+				if (i - start > 1 && i - start <= MAX_TOKEN_LENGTH) tokens.add(lowerCase.substring(start, i));
+				start = -1;
+			}
+		}
+		return tokens;
+	}
+
+	/** Returns the name of the shard the token belongs to. **/
+	String getShardName (String token) {
+		StringBuilder name = new StringBuilder();
+		for (int i = 0, n = Math.min(prefixLength, token.length()); i < n; i++) {
+			char c = token.charAt(i);
+			if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9'))
+				name.append(c);
+			else
+				name.append('_').append(Integer.toHexString(c));
+		}
+		return name.toString();
+	}
+
+	@Override
+	public void end (SiteGenerator generator) {
+		File indexDirectory = new File(generator.getOutputDirectory(), directory);
+		if (!indexDirectory.exists() && !indexDirectory.mkdirs())
+			throw new SiteGeneratorException("Couldn't create search index directory " + indexDirectory.getPath() + ".");
+
+		// Postings are sorted by token, so all tokens of a shard are adjacent.
+		List<String> shards = new ArrayList<String>();
+		Writer shard = null;
+		String shardName = null;
+		try {
+			for (Map.Entry<String, List<Integer>> entry : postings.entrySet()) {
+				String name = getShardName(entry.getKey());
+				if (!name.equals(shardName)) {
+					if (shard != null) closeShard(shard);
+					shardName = name;
+					shards.add(name);
+					shard = Html.openWriter(new File(indexDirectory, name + ".json"));
+					shard.write('{');
+				} else {
+					shard.write(',');
+				}
+				shard.write(Html.quoteJson(entry.getKey()));
+				shard.write(":[");
+				List<Integer> documentIds = entry.getValue();
+				for (int i = 0, n = documentIds.size(); i < n; i++) {
+					if (i > 0) shard.write(',');
+					shard.write(Integer.toString(documentIds.get(i)));
+				}
+				shard.write(']');
+			}
+			if (shard != null) closeShard(shard);
+			shard = null;
+
+			try (Writer index = Html.openWriter(new File(indexDirectory, "index.json"))) {
+				index.write("{\"prefixLength\":" + prefixLength + ",\"documents\":[");
+				for (int i = 0, n = documents.size(); i < n; i++) {
+					if (i > 0) index.write(',');
+					index.write("[" + Html.quoteJson(documents.get(i)[0]) + "," + Html.quoteJson(documents.get(i)[1]) + "]");
+				}
+				index.write("],\"shards\":[");
+				for (int i = 0, n = shards.size(); i < n; i++) {
+					if (i > 0) index.write(',');
+					index.write(Html.quoteJson(shards.get(i)));
+				}
+				index.write("]}");
+			}
+		} catch (IOException e) {
+			throw new SiteGeneratorException("Couldn't write search index to " + indexDirectory.getPath() + ".", e);
+		} finally {
+			if (shard != null) {
+				try {
+					shard.close();
+				} catch (IOException e) {
+					// Already failed, ignore
+				}
+			}
+			documents.clear();
+			postings.clear();
+		}
+	}
+
+	private static void closeShard (Writer shard) throws IOException {
+		shard.write('}');
+		shard.close();
+	}
+}
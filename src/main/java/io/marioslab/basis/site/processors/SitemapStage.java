@@ -0,0 +1,84 @@
+
+package io.marioslab.basis.site.processors;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import io.marioslab.basis.site.SiteFile;
+import io.marioslab.basis.site.SiteGenerator;
+import io.marioslab.basis.site.SiteGenerator.PostBuildStage;
+import io.marioslab.basis.site.SiteGenerator.SiteGeneratorException;
+
+/** A {@link PostBuildStage} writing a <code>sitemap.xml</code> to the output directory, listing all generated HTML pages. Pages
+ * with <code>published: false</code> in their metadata are skipped. The last modification date of a page is the last
+ * modification date of its input file. Entries are written as the generated files are streamed, so the sitemap is never held in
+ * memory. **/
+public class SitemapStage implements PostBuildStage {
+	private final String baseUrl;
+	private SiteGenerator generator;
+	private File sitemapFile;
+	private Writer writer;
+
+	/** Constructs a new stage.
+	 * @param baseUrl the absolute URL of the site, e.g. <code>https://mysite.com/</code>, which is prepended to the path of each
+	 *           page. */
+	public SitemapStage (String baseUrl) {
+		this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+	}
+
+	@Override
+	public void begin (SiteGenerator generator) {
+		this.generator = generator;
+		closeQuietly();
+		sitemapFile = new File(generator.getOutputDirectory(), "sitemap.xml");
+		try {
+			writer = Html.openWriter(sitemapFile);
+			writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+			writer.write("<urlset xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">\n");
+		} catch (IOException e) {
+			throw new SiteGeneratorException("Couldn't write sitemap " + sitemapFile.getPath() + ".", e);
+		}
+	}
+
+	@Override
+	public boolean accepts (SiteFile file) {
+		return Html.isHtml(file.getOutput().getName()) && !Boolean.FALSE.equals(file.getMetadata().get("published"));
+	}
+
+	@Override
+	public void process (SiteFile file) {
+		String url = baseUrl + Html.getPageUrl(generator.getRelativeOutputPath(file.getOutput()));
+		String lastModified = new SimpleDateFormat("yyyy-MM-dd").format(new Date(file.getLastModified()));
+		try {
+			writer.write("  <url><loc>" + Html.escape(url) + "</loc><lastmod>" + lastModified + "</lastmod></url>\n");
+		} catch (IOException e) {
+			throw new SiteGeneratorException("Couldn't write sitemap " + sitemapFile.getPath() + ".", e);
+		}
+	}
+
+	@Override
+	public void end (SiteGenerator generator) {
+		try {
+			writer.write("</urlset>\n");
+			writer.close();
+		} catch (IOException e) {
+			throw new SiteGeneratorException("Couldn't write sitemap " + sitemapFile.getPath() + ".", e);
+		} finally {
+			writer = null;
+		}
+	}
+
+	/** Closes the writer left open by a previous build that failed. **/
+	private void closeQuietly () {
+		if (writer == null) return;
+		try {
+			writer.close();
+		} catch (IOException e) {
+			// The previous build failed already, ignore
+		}
+		writer = null;
+	}
+}
@@ -0,0 +1,40 @@
+
+package io.marioslab.basis.site.processors;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.marioslab.basis.template.Template;
+
+/** Caches the templates loaded by {@link TemplateFileProcessor} instances by path and content, so a template is only parsed once,
+ * even if it is used by multiple sites built from the same input directory. Included templates are resolved when a template is
+ * loaded, so the cache must be cleared via {@link #clear()} before each build. Safe to use from multiple threads. **/
+public class TemplateCache {
+	private final Map<String, CachedTemplate> templates = new ConcurrentHashMap<String, CachedTemplate>();
+
+	private static class CachedTemplate {
+		final byte[] content;
+		final Template template;
+
+		CachedTemplate (byte[] content, Template template) {
+			this.content = content;
+			this.template = template;
+		}
+	}
+
+	/** Returns the template for the path and content, loading it if it isn't cached yet or its content changed. **/
+	public Template load (String path, byte[] content) {
+		CachedTemplate cached = templates.get(path);
+		if (cached != null && Arrays.equals(cached.content, content)) return cached.template;
+
+		Template template = TemplateFileProcessor.loadTemplate(path, content);
+		templates.put(path, new CachedTemplate(content, template));
+		return template;
+	}
+
+	/** Removes all templates from the cache. **/
+	public void clear () {
+		templates.clear();
+	}
+}
@@ -16,13 +16,22 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import io.marioslab.basis.site.SiteFile;
 import io.marioslab.basis.site.SiteFileProcessor;
 import io.marioslab.basis.site.SiteGenerator;
 import io.marioslab.basis.site.SiteGenerator.SiteGeneratorException;
+import io.marioslab.basis.template.Error.TemplateException;
 import io.marioslab.basis.template.Template;
 import io.marioslab.basis.template.TemplateContext;
 import io.marioslab.basis.template.TemplateLoader.FileTemplateLoader;
@@ -51,15 +60,70 @@ import io.marioslab.basis.template.parsing.Parser.ParserResult;
  * In addition to the functions and variables provided by the function providers, the {@link SiteFile} representing the file being
  * evaluated is passed in the variable <code>file</code>.
  * </p>
+ *
+ * <p>
+ * Templates can call <code>String fragment(String path)</code> to render a template file whose output does not depend on the page
+ * that includes it, e.g. a footer or navigation. The path is given relative to the input directory, so the same call works from
+ * pages and fragments at any directory depth. A fragment is rendered once and its output is reused by every page that includes it
+ * during a build. Fragments have access to the functions and variables of the {@link FunctionProvider} instances, but not to the
+ * <code>file</code> variable or any variables of the including page. The {@link SiteFile} passed to the function providers for a
+ * fragment has no output file, see {@link FunctionProvider#provide(SiteFile, TemplateContext)}.
+ * </p>
+ *
+ * <p>
+ * A template can generate one page per row of a data file by specifying the file in its metadata via <code>data</code>, and the
+ * output file of each row via <code>dataOutput</code>, e.g. <code>metadata = { data: "products.csv", dataOutput:
+ * "products/{id}.html" }</code>. The data file is read from the <code>_data/</code> directory in the input directory, see
+ * {@link DataSource} for the supported formats. The output path is relative to the template, and <code>{column}</code> is
+ * replaced with the row's value of the column. The row is passed to the template and its metadata in the variable
+ * <code>row</code>. Rows are streamed from the data file and rendered in parallel, only a few rows are held in memory at any time.
+ * The template itself is not written to the output directory. In a sharded build, each shard generates the pages of the rows
+ * whose output file belongs to the shard.
+ * </p>
  */
 public class TemplateFileProcessor implements SiteFileProcessor {
+	private static final Pattern COLUMN = Pattern.compile("\\{([^}]+)\\}");
+
 	private final List<FunctionProvider> functionProviders;
+	private final Map<String, byte[]> fragments = new ConcurrentHashMap<String, byte[]>();
+	/** Whether a template has a data file by absolute path, see {@link #isDataTemplate(File)}. Cleared at the start of each
+	 * build. **/
+	private final Map<String, DataTemplate> dataTemplates = new ConcurrentHashMap<String, DataTemplate>();
+	private final TemplateCache templateCache;
+	private final boolean ownsTemplateCache;
+	private final int maxPendingRows = Runtime.getRuntime().availableProcessors() * 4;
+	private ExecutorService executor;
+	/** The generator this processor belongs to, set by the first build. Fragments and data files are read from its input
+	 * directory, and data pages are written to its output directory. **/
+	private volatile SiteGenerator generator;
 
 	/** Constructs a new processor. The {@link FunctionProvider} instances will be called on every processed template file to set
 	 * variables and functions on the {@link TemplateContext} passed to the template. See {@link BuiltinFunctionProvider} for the
 	 * default implementation. */
 	public TemplateFileProcessor (List<FunctionProvider> functionProviders) {
+		this(functionProviders, new TemplateCache(), true, null);
+	}
+
+	/** Constructs a new processor loading templates through the given {@link TemplateCache}, which may be shared with the
+	 * processors of other sites. The processor does not clear a shared cache, the owner of the cache must clear it before each
+	 * build. See {@link #TemplateFileProcessor(List)}. */
+	public TemplateFileProcessor (List<FunctionProvider> functionProviders, TemplateCache templateCache) {
+		this(functionProviders, templateCache, false, null);
+	}
+
+	/** Constructs a new processor loading templates through the given {@link TemplateCache}, and rendering the pages of data
+	 * files on the given executor, both of which may be shared with other processors, e.g. of other sites. See
+	 * {@link #TemplateFileProcessor(List, TemplateCache)}. */
+	public TemplateFileProcessor (List<FunctionProvider> functionProviders, TemplateCache templateCache, ExecutorService executor) {
+		this(functionProviders, templateCache, false, executor);
+	}
+
+	private TemplateFileProcessor (List<FunctionProvider> functionProviders, TemplateCache templateCache, boolean ownsTemplateCache,
+		ExecutorService executor) {
 		this.functionProviders = functionProviders;
+		this.templateCache = templateCache;
+		this.ownsTemplateCache = ownsTemplateCache;
+		this.executor = executor;
 	}
 
 	@Override
@@ -67,32 +131,248 @@ public class TemplateFileProcessor implements SiteFileProcessor {
 		return fileName.replace(".bt.", ".");
 	}
 
+	/** Binds the processor to the generator on the first build. Throws a {@link SiteGeneratorException} if the processor belongs
+	 * to another generator, as fragments, data files and data pages are resolved against the input and output directory of a
+	 * single site. Each site needs a processor of its own, which may share a {@link TemplateCache} and executor with the
+	 * processors of other sites. **/
+	@Override
+	public synchronized void buildStarted (SiteGenerator generator) {
+		if (this.generator != null && this.generator != generator) {
+			throw new SiteGeneratorException("A TemplateFileProcessor can't be shared by multiple generators, create one per site for "
+				+ generator.getInputDirectory().getPath() + ".");
+		}
+		this.generator = generator;
+		clearFragments();
+		dataTemplates.clear();
+		if (ownsTemplateCache) templateCache.clear();
+	}
+
 	@Override
 	public void process (SiteFile file) {
 		if (!file.getInput().getName().contains(".bt.")) return;
 
-		Template template = loadTemplate(file.getInput().getPath(), file.getContent());
+		Template template = templateCache.load(file.getInput().getPath(), file.getContent());
 
 		// Read the metadata node if any.
 		readMetadata(template.getNodes(), file);
 
+		// Templates with a data file generate one page per row instead of themselves.
+		if (file.getMetadata().get("data") != null) {
+			generateDataPages(file, template);
+			file.setDiscarded(true);
+			return;
+		}
+
+		file.setContent(render(template, file, null));
+	}
+
+	/** Returns true for templates with a data file, so each shard of a sharded build generates its share of the data file's pages.
+	 * See {@link SiteGenerator#setShard(int, int)}. **/
+	@Override
+	public boolean processInAllShards (File inputFile) {
+		return isDataTemplate(inputFile);
+	}
+
+	/** Returns false for templates with a data file, which generate a page per row instead of an output file of their own. **/
+	@Override
+	public boolean producesOutputFile (File inputFile) {
+		return !isDataTemplate(inputFile);
+	}
+
+	private static class DataTemplate {
+		final long lastModified;
+		final boolean hasData;
+
+		DataTemplate (long lastModified, boolean hasData) {
+			this.lastModified = lastModified;
+			this.hasData = hasData;
+		}
+	}
+
+	/** Returns whether the template has a data file in its metadata. The result is cached per file and modification time for the
+	 * duration of a build, as the generator asks for each file multiple times. **/
+	private boolean isDataTemplate (File inputFile) {
+		if (!inputFile.getName().contains(".bt.")) return false;
+		String key = inputFile.getAbsolutePath();
+		long lastModified = inputFile.lastModified();
+		DataTemplate cached = dataTemplates.get(key);
+		if (cached != null && cached.lastModified == lastModified) return cached.hasData;
+		try {
+			SiteFile file = new SiteFile(inputFile, null, new HashMap<String, Object>());
+			readMetadata(templateCache.load(inputFile.getPath(), Files.readAllBytes(inputFile.toPath())).getNodes(), file);
+			boolean hasData = file.getMetadata().get("data") != null;
+			dataTemplates.put(key, new DataTemplate(lastModified, hasData));
+			return hasData;
+		} catch (IOException e) {
+			throw new SiteGeneratorException("Couldn't read file " + inputFile.getPath() + ".", e);
+		}
+	}
+
+	private byte[] render (Template template, SiteFile file, Map<String, Object> row) {
 		TemplateContext context = new TemplateContext();
 		context.set("file", file);
+		if (row != null) context.set("row", row);
+		context.set("fragment", (Function<String, String>) (String path) -> fragment(path));
 		for (FunctionProvider provider : functionProviders)
 			provider.provide(file, context);
 
-		ByteArrayOutputStream newContent = new ByteArrayOutputStream(file.getContent().length);
+		ByteArrayOutputStream newContent = new ByteArrayOutputStream(file.getContent() != null ? file.getContent().length : 1024);
 		template.render(context, newContent);
 		try {
 			newContent.flush();
 		} catch (IOException e) {
 			// This should never happen...
 		}
-		file.setContent(newContent.toByteArray());
+		return newContent.toByteArray();
+	}
+
+	/** Streams the rows of the template's data file, and renders and generates a page per row on the executor. Only a few
+	 * rows are read ahead of the pages that have been generated, so the rows of large data files are never all in memory. **/
+	private void generateDataPages (SiteFile file, Template template) {
+		SiteGenerator generator = this.generator;
+		if (generator == null) throw new SiteGeneratorException("Data template " + file.getInput().getPath() + " can only be processed during a build.");
+		Object outputPattern = file.getMetadata().get("dataOutput");
+		if (outputPattern == null) throw new SiteGeneratorException("Data template " + file.getInput().getPath() + " needs a dataOutput in its metadata.");
+		File dataFile = new File(new File(generator.getInputDirectory(), "_data"), file.getMetadata().get("data").toString());
+		if (!dataFile.exists()) throw new SiteGeneratorException("Data file " + dataFile.getPath() + " does not exist.");
+
+		ExecutorService executor = getExecutor();
+		Semaphore pending = new Semaphore(maxPendingRows);
+		AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		try (DataSource source = DataSource.open(dataFile)) {
+			try {
+				Map<String, Object> row;
+				while (error.get() == null && (row = source.next()) != null) {
+					Map<String, Object> pageRow = row;
+					int line = source.getLine();
+					File output = getDataOutputFile(generator, file, outputPattern.toString(), row, dataFile, line);
+					if (!generator.isInShard(generator.getRelativeOutputPath(output))) continue;
+					pending.acquire();
+					executor.execute( () -> {
+						try {
+							SiteFile page = new SiteFile(file.getInput(), output, new HashMap<String, Object>());
+							readMetadata(template.getNodes(), page, pageRow);
+							page.setContent(render(template, page, pageRow));
+							generator.generate(page, this);
+						} catch (Throwable t) {
+							if (t instanceof TemplateException || t instanceof CancellationException) error.compareAndSet(null, t);
+							else error.compareAndSet(null, new SiteGeneratorException("Couldn't generate page for line " + line + " of data file " + dataFile.getPath() + ".", t));
+						} finally {
+							pending.release();
+						}
+					});
+				}
+			} finally {
+				// Wait for the remaining pages to be generated, also if reading a row failed, so no page is written
+				// after this method returned.
+				pending.acquireUninterruptibly(maxPendingRows);
+				pending.release(maxPendingRows);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SiteGeneratorException("Interrupted while generating pages for data file " + dataFile.getPath() + ".", e);
+		}
+
+		Throwable t = error.get();
+		if (t instanceof RuntimeException) throw (RuntimeException)t;
+		if (t != null) throw new SiteGeneratorException("Couldn't generate pages for data file " + dataFile.getPath() + ".", t);
+	}
+
+	/** Returns the output file of a row, replacing each <code>{column}</code> in the pattern with the row's value of the column.
+	 * Throws a {@link SiteGeneratorException} if a column doesn't exist, or the output file is outside the output directory. **/
+	private static File getDataOutputFile (SiteGenerator generator, SiteFile file, String pattern, Map<String, Object> row, File dataFile,
+		int line) {
+		Matcher matcher = COLUMN.matcher(pattern);
+		StringBuffer path = new StringBuffer();
+		while (matcher.find()) {
+			String column = matcher.group(1);
+			if (!row.containsKey(column))
+				throw new SiteGeneratorException("Column " + column + " of dataOutput " + pattern + " not found in line " + line + " of data file " + dataFile.getPath() + ".");
+			matcher.appendReplacement(path, Matcher.quoteReplacement(String.valueOf(row.get(column))));
+		}
+		matcher.appendTail(path);
+
+		File output = generator.generateOutputFile(new File(file.getInput().getParentFile(), path.toString()));
+		if (!output.getAbsoluteFile().toPath().normalize().startsWith(generator.getOutputDirectory().getAbsoluteFile().toPath().normalize()))
+			throw new SiteGeneratorException("Output file " + path + " for line " + line + " of data file " + dataFile.getPath() + " is outside the output directory.");
+		return output;
+	}
+
+	private synchronized ExecutorService getExecutor () {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), (Runnable runnable) -> {
+				Thread thread = new Thread(runnable, "TemplateFileProcessor");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return executor;
+	}
+
+	/** Clears the cached output of all fragments rendered via the <code>fragment()</code> function. Called at the start of each
+	 * build, so fragments reflect the latest state of the input directory. **/
+	public void clearFragments () {
+		fragments.clear();
+	}
+
+	/** Returns the output of the fragment at the path relative to the input directory, rendering it if it hasn't been rendered
+	 * during the current build. **/
+	private String fragment (String path) {
+		SiteGenerator generator = this.generator;
+		if (generator == null) throw new SiteGeneratorException("Fragment " + path + " can only be rendered during a build.");
+		File fragmentFile = new File(generator.getInputDirectory(), path);
+		String key;
+		try {
+			key = fragmentFile.getCanonicalPath();
+		} catch (IOException e) {
+			throw new SiteGeneratorException("Couldn't resolve fragment " + fragmentFile.getPath() + ".", e);
+		}
+
+		// Fragments may include other fragments, so we can't render within computeIfAbsent(). Two pages
+		// racing for the same fragment will both render it, but only the first result is kept.
+		byte[] content = fragments.get(key);
+		if (content == null) {
+			content = renderFragment(fragmentFile);
+			byte[] existing = fragments.putIfAbsent(key, content);
+			if (existing != null) content = existing;
+		}
+		try {
+			return new String(content, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private byte[] renderFragment (File fragmentFile) {
+		if (!fragmentFile.exists()) throw new SiteGeneratorException("Fragment " + fragmentFile.getPath() + " does not exist.");
+		try {
+			byte[] content = Files.readAllBytes(fragmentFile.toPath());
+			Template template = templateCache.load(fragmentFile.getPath(), content);
+
+			// The fragment is rendered without the including page's file, so its output is the same for every page. It has
+			// no output file of its own, as it is not written to the output directory.
+			SiteFile file = new SiteFile(fragmentFile, null, new HashMap<String, Object>());
+			TemplateContext context = new TemplateContext();
+			context.set("fragment", (Function<String, String>) (String path) -> fragment(path));
+			for (FunctionProvider provider : functionProviders)
+				provider.provide(file, context);
+
+			ByteArrayOutputStream newContent = new ByteArrayOutputStream(content.length);
+			template.render(context, newContent);
+			return newContent.toByteArray();
+		} catch (IOException e) {
+			throw new SiteGeneratorException("Couldn't read fragment " + fragmentFile.getPath() + ".", e);
+		}
 	}
 
-	@SuppressWarnings("unchecked")
 	static void readMetadata (List<Node> nodes, SiteFile file) {
+		readMetadata(nodes, file, Collections.<String, Object> emptyMap());
+	}
+
+	/** Reads the metadata of the template into the file. The row is passed to the metadata definition in the variable
+	 * <code>row</code>, see {@link TemplateFileProcessor}. **/
+	@SuppressWarnings("unchecked")
+	static void readMetadata (List<Node> nodes, SiteFile file, Map<String, Object> row) {
 		if (nodes.size() > 0) {
 			for (Node node : nodes) {
 				if (node instanceof Text) continue;
@@ -102,6 +382,7 @@ public class TemplateFileProcessor implements SiteFileProcessor {
 				if (!(assignment.getLeftOperand() instanceof VariableAccess)) continue;
 				if (!((VariableAccess)assignment.getLeftOperand()).getVariableName().getText().equals("metadata")) continue;
 				TemplateContext context = new TemplateContext();
+				context.set("row", row);
 				context.set("parseDate", (Function<String, Date>) (String date) -> {
 					try {
 						return new SimpleDateFormat("yyyy/MM/dd hh:ss").parse(date);
@@ -171,9 +452,35 @@ public class TemplateFileProcessor implements SiteFileProcessor {
 			R apply (S s, T t, U u, V v);
 		}
 
+		/** Sets the variables and functions for the file on the context.
+		 * @param file the file being rendered. For a fragment, see {@link TemplateFileProcessor}, the file's input is the fragment
+		 *           template and its output is null, as the fragment's output is shared by all pages including it. Providers
+		 *           deriving values from the output file, e.g. relative URLs, must handle a null output. */
 		public void provide (SiteFile file, TemplateContext context);
 	}
 
+	/** A {@link FunctionProvider} providing variables, e.g. per-site data like translated strings when building
+	 * multiple localized variants of a site. **/
+	public static class VariableProvider implements FunctionProvider {
+		private volatile Map<String, Object> variables;
+
+		public VariableProvider (Map<String, Object> variables) {
+			this.variables = variables;
+		}
+
+		/** Replaces the variables, e.g. after the file they have been read from changed. Files processed afterwards see the new
+		 * variables. **/
+		public void setVariables (Map<String, Object> variables) {
+			this.variables = variables;
+		}
+
+		@Override
+		public void provide (SiteFile file, TemplateContext context) {
+			for (Map.Entry<String, Object> variable : variables.entrySet())
+				context.set(variable.getKey(), variable.getValue());
+		}
+	}
+
 	/**
 	 * <p>
 	 * A {@link FunctionProvider} adding useful functions to the {@link TemplateContext} used for evaluating a file templated with
@@ -199,6 +506,12 @@ public class TemplateFileProcessor implements SiteFileProcessor {
 	 * dates, or strings.</li>
 	 * <li><code>void sort(Object arrayOrList)</code>: sorts the list or array of Comparable instances. If the items in the list or
 	 * array are not comparable, the sort order is undefined.</li>
+	 * <li><code>String content(Object fileOrPath)</code>: returns the output of another file, e.g. a {@link SiteFile} returned by
+	 * <code>listFiles()</code>, or a path relative to the {@link SiteGenerator} input path. The file is generated once per build,
+	 * no matter how many files request it, see {@link SiteGenerator#getProcessedFile(File, File)}.</li>
+	 * <li><code>String excerpt(Object fileOrPath, int length)</code>: returns the text of another file's output, shortened to at most
+	 * <code>length</code> characters. Only the text of the page's <code>article</code>, <code>main</code> or <code>body</code>
+	 * element is used, in that order of preference.</li>
 	 * </ul>
 	 **/
 	public static class BuiltinFunctionProvider implements FunctionProvider {
@@ -234,9 +547,40 @@ public class TemplateFileProcessor implements SiteFileProcessor {
 			}
 		}
 
+		private String content (SiteFile requestingFile, Object fileOrPath) {
+			File file;
+			if (fileOrPath instanceof SiteFile)
+				file = ((SiteFile)fileOrPath).getInput();
+			else if (fileOrPath instanceof String)
+				file = new File(siteGenerator.getInputDirectory(), (String)fileOrPath);
+			else
+				throw new SiteGeneratorException("Expected a file or path, got " + fileOrPath + ".");
+			try {
+				return new String(siteGenerator.getProcessedFile(requestingFile.getInput(), file).getContent(), "UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		private String excerpt (SiteFile requestingFile, Object fileOrPath, int length) {
+			String text = Html.extractText(Html.extractMainContent(content(requestingFile, fileOrPath)));
+			if (text.length() <= length) return text;
+
+			// Cut at the last word boundary
+			int end = text.lastIndexOf(' ', length);
+			if (end <= 0) end = length;
+			return text.substring(0, end) + "...";
+		}
+
 		@SuppressWarnings({"rawtypes", "unchecked"})
 		@Override
 		public void provide (SiteFile file, TemplateContext context) {
+			context.set("content", (Function<Object, String>) (Object fileOrPath) -> content(file, fileOrPath));
+
+			context.set("excerpt", (BiFunction<Object, Integer, String>) (Object fileOrPath, Integer length) -> {
+				return excerpt(file, fileOrPath, length);
+			});
+
 			context.set("parseDate", (Function<String, Date>) (String date) -> {
 				try {
 					return new SimpleDateFormat("yyyy/MM/dd hh:ss").parse(date);
@@ -0,0 +1,113 @@
+
+package io.marioslab.basis.site;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+/** Builds the example site in two shards, each in its own JVM, merges them, and compares the result with an unsharded build. **/
+public class ShardTest {
+	private static final String BASE_URL = "https://ponyhof.example.com/";
+
+	@Test
+	public void testShardedBuildMatchesFullBuild () throws Exception {
+		File directory = Files.createTempDirectory("basis-site-shards").toFile();
+		try {
+			String input = new File("example").getAbsolutePath();
+			File full = new File(directory, "full");
+			File shard1 = new File(directory, "shard-1");
+			File shard2 = new File(directory, "shard-2");
+			File merged = new File(directory, "merged");
+
+			List<Process> shards = Arrays.asList(start("-shard", "1/2", "-i", input, "-o", shard1.getPath(), "-c", directory + "/cache-1"),
+				start("-shard", "2/2", "-i", input, "-o", shard2.getPath(), "-c", directory + "/cache-2"));
+			for (Process shard : shards)
+				waitFor(shard);
+			waitFor(start("-i", input, "-o", full.getPath(), "-c", directory + "/cache-full", "-u", BASE_URL));
+			waitFor(start("-merge", shard1.getPath() + "," + shard2.getPath(), "-o", merged.getPath(), "-u", BASE_URL));
+
+			assertTrue("Shard 1 generated no files", listFiles(shard1).size() > 1);
+			assertTrue("Shard 2 generated no files", listFiles(shard2).size() > 1);
+
+			TreeMap<String, File> fullFiles = listFiles(full);
+			TreeMap<String, File> mergedFiles = listFiles(merged);
+			mergedFiles.remove(SiteGenerator.SHARD_MANIFEST);
+			assertEquals(fullFiles.keySet(), mergedFiles.keySet());
+			for (String path : fullFiles.keySet()) {
+				List<String> expected = readLines(fullFiles.get(path));
+				List<String> actual = readLines(mergedFiles.get(path));
+				// The post-build stages see the files in a different order when merging
+				if (path.equals("sitemap.xml") || path.equals("feed.xml")) {
+					Collections.sort(expected);
+					Collections.sort(actual);
+				}
+				assertEquals("Content of " + path + " differs", expected, actual);
+			}
+		} finally {
+			delete(directory);
+		}
+	}
+
+	/** Starts basis-site in a new JVM with the class path of this JVM. **/
+	private static Process start (String... args) throws IOException {
+		List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(BasisSite.class.getName());
+		command.addAll(Arrays.asList(args));
+		return new ProcessBuilder(command).redirectErrorStream(true).start();
+	}
+
+	private static void waitFor (Process process) throws Exception {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		try (InputStream in = process.getInputStream()) {
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) != -1)
+				output.write(buffer, 0, read);
+		}
+		assertTrue("basis-site didn't finish in time", process.waitFor(2, TimeUnit.MINUTES));
+		assertEquals("basis-site failed:\n" + output.toString("UTF-8"), 0, process.exitValue());
+	}
+
+	/** Returns the files in the directory by path relative to the directory, using '/' as the separator. **/
+	private static TreeMap<String, File> listFiles (File directory) throws IOException {
+		TreeMap<String, File> files = new TreeMap<String, File>();
+		Path base = directory.toPath();
+		try (Stream<Path> paths = Files.walk(base)) {
+			for (Path path : paths.filter(Files::isRegularFile).collect(Collectors.toList()))
+				files.put(base.relativize(path).toString().replace(File.separatorChar, '/'), path.toFile());
+		}
+		return files;
+	}
+
+	private static List<String> readLines (File file) throws IOException {
+		return new ArrayList<String>(Arrays.asList(new String(Files.readAllBytes(file.toPath()), "UTF-8").split("\n", -1)));
+	}
+
+	private static void delete (File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children)
+				delete(child);
+		}
+		file.delete();
+	}
+}
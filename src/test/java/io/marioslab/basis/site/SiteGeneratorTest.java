@@ -0,0 +1,245 @@
+
+package io.marioslab.basis.site;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import org.junit.Test;
+
+import io.marioslab.basis.site.SiteGenerator.SiteGeneratorException;
+
+public class SiteGeneratorTest {
+	@Test
+	public void testFailingFileOfBatch () throws IOException {
+		File input = createInput("a.txt", "a", "b.txt", "b", "c.txt", "c");
+		SiteGenerator generator = new SiteGenerator(input, new File(input.getParentFile(), "output"));
+		CountingProcessor counter = new CountingProcessor();
+		generator.addProcessor(counter);
+		generator.addProcessor(new SiteFileProcessor() {
+			@Override
+			public void process (SiteFile file) {
+				if (file.getInput().getName().equals("b.txt")) throw new IllegalStateException("Broken pony.");
+			}
+
+			@Override
+			public String processOutputFileName (String fileName) {
+				return fileName;
+			}
+		});
+		try {
+			generator.generate();
+			fail("Expected the build to fail.");
+		} catch (SiteGeneratorException e) {
+			assertEquals("Couldn't generate output for file " + new File(input, "b.txt").getPath() + ".", e.getMessage());
+			assertEquals("Broken pony.", e.getCause().getMessage());
+		}
+		// The files are not processed again to find the failing file
+		for (String name : new String[] {"a.txt", "b.txt", "c.txt"})
+			assertEquals(name, 1, counter.count(name));
+	}
+
+	@Test
+	public void testDirectCycle () throws IOException {
+		File input = createInput("a.txt", "b.txt", "b.txt", "a.txt");
+		SiteGenerator generator = new SiteGenerator(input, new File(input.getParentFile(), "output"));
+		// Each file requests the file named by its content
+		generator.addProcessor(processor( (SiteFile file) -> {
+			generator.getProcessedFile(file.getInput(), new File(input, new String(file.getContent())));
+		}));
+		assertCycle(generator, "a.txt -> b.txt -> a.txt", "b.txt -> a.txt -> b.txt");
+	}
+
+	@Test
+	public void testCycleThroughFragment () throws IOException {
+		File input = createInput("a.txt", "b.txt", "b.txt", "a.txt", "_fragment.txt", "");
+		SiteGenerator generator = new SiteGenerator(input, new File(input.getParentFile(), "output"));
+		// Each file renders a fragment, which requests the file named by the content of the including file
+		generator.addProcessor(processor( (SiteFile file) -> {
+			generator.getProcessedFile(new File(input, "_fragment.txt"), new File(input, new String(file.getContent())));
+		}));
+		assertCycle(generator, "a.txt -> _fragment.txt -> b.txt -> _fragment.txt -> a.txt",
+			"b.txt -> _fragment.txt -> a.txt -> _fragment.txt -> b.txt");
+	}
+
+	@Test
+	public void testCrossThreadCycle () throws IOException {
+		File input = createInput("a.txt", "", "sub/c.txt", "sub/e.txt", "sub/e.txt", "sub/c.txt");
+		SiteGenerator generator = new SiteGenerator(input, new File(input.getParentFile(), "output"));
+		CyclicBarrier barrier = new CyclicBarrier(2);
+		generator.addProcessor(processor( (SiteFile file) -> {
+			if (file.getInput().getName().equals("a.txt")) {
+				// Request c.txt and e.txt on two threads, like the pages of a data file
+				AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+				List<Thread> threads = new ArrayList<Thread>();
+				for (String path : new String[] {"sub/c.txt", "sub/e.txt"}) {
+					Thread thread = new Thread( () -> {
+						try {
+							generator.getProcessedFile(file.getInput(), new File(input, path));
+						} catch (Throwable t) {
+							error.compareAndSet(null, t);
+						}
+					});
+					threads.add(thread);
+					thread.start();
+				}
+				for (Thread thread : threads)
+					join(thread);
+				if (error.get() != null) throw (RuntimeException)error.get();
+			} else {
+				// c.txt and e.txt request each other once both are being processed
+				try {
+					barrier.await();
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+				generator.getProcessedFile(file.getInput(), new File(input, new String(file.getContent())));
+			}
+		}));
+		assertCycle(generator, "sub/c.txt -> sub/e.txt -> sub/c.txt", "sub/e.txt -> sub/c.txt -> sub/e.txt");
+	}
+
+	@Test
+	public void testEarlierSiblingThroughFragment () throws IOException {
+		File input = createInput("a.txt", "a", "b.txt", "b", "_fragment.txt", "");
+		SiteGenerator generator = new SiteGenerator(input, new File(input.getParentFile(), "output"));
+		List<String> rendered = new ArrayList<String>();
+		List<String> excerpts = new ArrayList<String>();
+		// Renders a file by appending "!". The second file of the batch renders a fragment excerpting the first file, which the
+		// processor has rendered already.
+		generator.addProcessor(processor( (SiteFile file) -> {
+			rendered.add(file.getInput().getName());
+			file.setContent((new String(file.getContent()) + "!").getBytes());
+			if (rendered.size() == 2) {
+				File first = new File(input, rendered.get(0));
+				excerpts.add(new String(generator.getProcessedFile(new File(input, "_fragment.txt"), first).getContent()));
+			}
+		}));
+		CountingProcessor counter = new CountingProcessor();
+		generator.addProcessor(counter);
+		generator.generate();
+
+		assertEquals(2, rendered.size());
+		String first = rendered.get(0);
+		assertEquals(first.substring(0, 1) + "!", excerpts.get(0));
+		assertEquals(1, counter.count("a.txt"));
+		assertEquals(1, counter.count("b.txt"));
+		assertEquals("a!", read(new File(input.getParentFile(), "output/a.txt")));
+		assertEquals("b!", read(new File(input.getParentFile(), "output/b.txt")));
+	}
+
+	@Test
+	public void testLaterSiblingThroughFragment () throws IOException {
+		File input = createInput("a.txt", "a", "b.txt", "b", "_fragment.txt", "");
+		SiteGenerator generator = new SiteGenerator(input, new File(input.getParentFile(), "output"));
+		List<String> rendered = new ArrayList<String>();
+		List<String> excerpts = new ArrayList<String>();
+		// The first file of the batch renders a fragment excerpting the second file, which is rendered on request and skipped by
+		// the batch
+		generator.addProcessor(processor( (SiteFile file) -> {
+			boolean first = rendered.isEmpty();
+			rendered.add(file.getInput().getName());
+			file.setContent((new String(file.getContent()) + "!").getBytes());
+			if (first) {
+				String second = file.getInput().getName().equals("a.txt") ? "b.txt" : "a.txt";
+				excerpts.add(new String(generator.getProcessedFile(new File(input, "_fragment.txt"), new File(input, second)).getContent()));
+			}
+		}));
+		CountingProcessor counter = new CountingProcessor();
+		generator.addProcessor(counter);
+		generator.generate();
+
+		assertEquals(2, rendered.size());
+		assertEquals(rendered.get(1).substring(0, 1) + "!", excerpts.get(0));
+		assertEquals(1, counter.count("a.txt"));
+		assertEquals(1, counter.count("b.txt"));
+		assertEquals("a!", read(new File(input.getParentFile(), "output/a.txt")));
+		assertEquals("b!", read(new File(input.getParentFile(), "output/b.txt")));
+	}
+
+	/** Asserts that generating fails with one of the cycles, depending on which file of the cycle is processed first. **/
+	private static void assertCycle (SiteGenerator generator, String... cycles) {
+		try {
+			generator.generate();
+			fail("Expected a cycle.");
+		} catch (SiteGeneratorException e) {
+			String messages = "";
+			for (Throwable t = e; t != null; t = t.getCause())
+				messages += t.getMessage() + "\n";
+			boolean found = false;
+			for (String cycle : cycles)
+				found |= messages.contains("Files depend on each other in a cycle: " + cycle + ".");
+			assertTrue(messages, found);
+		}
+	}
+
+	private static void join (Thread thread) {
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String read (File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), "UTF-8");
+	}
+
+	/** Returns a processor passing each file to the consumer. **/
+	static SiteFileProcessor processor (Consumer<SiteFile> consumer) {
+		return new SiteFileProcessor() {
+			@Override
+			public void process (SiteFile file) {
+				consumer.accept(file);
+			}
+
+			@Override
+			public String processOutputFileName (String fileName) {
+				return fileName;
+			}
+		};
+	}
+
+	/** Creates an input directory with the given file names and contents. **/
+	static File createInput (String... namesAndContents) throws IOException {
+		File input = new File(Files.createTempDirectory("basis-site").toFile(), "input");
+		for (int i = 0; i < namesAndContents.length; i += 2) {
+			File file = new File(input, namesAndContents[i]);
+			file.getParentFile().mkdirs();
+			Files.write(file.toPath(), namesAndContents[i + 1].getBytes("UTF-8"));
+		}
+		return input;
+	}
+
+	/** Counts how often each file is processed. **/
+	static class CountingProcessor implements SiteFileProcessor {
+		final Map<String, AtomicInteger> counts = new ConcurrentHashMap<String, AtomicInteger>();
+
+		@Override
+		public void process (SiteFile file) {
+			counts.computeIfAbsent(file.getInput().getName(), (String name) -> new AtomicInteger()).incrementAndGet();
+		}
+
+		@Override
+		public String processOutputFileName (String fileName) {
+			return fileName;
+		}
+
+		int count (String name) {
+			AtomicInteger count = counts.get(name);
+			return count != null ? count.get() : 0;
+		}
+	}
+}
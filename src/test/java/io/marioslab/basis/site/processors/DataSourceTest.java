@@ -0,0 +1,137 @@
+
+package io.marioslab.basis.site.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import io.marioslab.basis.site.SiteGenerator.SiteGeneratorException;
+
+public class DataSourceTest {
+	@Test
+	public void testCsvQuotedValues () throws IOException {
+		List<Map<String, Object>> rows = readRows(".csv", "id,name,desc\n1,Pony,\"A \"\"nice\"\", pony\"\n2,\"\",\"\"\"\"\n");
+		assertEquals(2, rows.size());
+		assertEquals(row("id", "1", "name", "Pony", "desc", "A \"nice\", pony"), rows.get(0));
+		assertEquals(row("id", "2", "name", "", "desc", "\""), rows.get(1));
+	}
+
+	@Test
+	public void testCsvCrlf () throws IOException {
+		List<Map<String, Object>> rows = readRows(".csv", "id,name\r\n1,Bella\r\n2,\"Fred\r\nthe second\"\r\n");
+		assertEquals(2, rows.size());
+		assertEquals(row("id", "1", "name", "Bella"), rows.get(0));
+		assertEquals(row("id", "2", "name", "Fred\r\nthe second"), rows.get(1));
+	}
+
+	@Test
+	public void testCsvBom () throws IOException {
+		List<Map<String, Object>> rows = readRows(".csv", "\uFEFFid,name\n1,Bella\n");
+		assertEquals(Arrays.asList(row("id", "1", "name", "Bella")), rows);
+	}
+
+	@Test
+	public void testCsvLineNumbers () throws IOException {
+		DataSource source = DataSource.open(write(".csv", "id,desc\n\n1,\"multi\nline\"\n2,single\r\n\r\n3,\n"));
+		try {
+			assertEquals(row("id", "1", "desc", "multi\nline"), source.next());
+			assertEquals(3, source.getLine());
+			assertEquals(row("id", "2", "desc", "single"), source.next());
+			assertEquals(5, source.getLine());
+			assertEquals(row("id", "3", "desc", ""), source.next());
+			assertEquals(7, source.getLine());
+			assertNull(source.next());
+		} finally {
+			source.close();
+		}
+	}
+
+	@Test
+	public void testCsvMissingValues () throws IOException {
+		List<Map<String, Object>> rows = readRows(".csv", "id,name,color\n1,Bella\n");
+		assertEquals(Arrays.asList(row("id", "1", "name", "Bella", "color", "")), rows);
+	}
+
+	@Test
+	public void testCsvErrors () throws IOException {
+		assertError(".csv", "id,name\n1,Bella\n2,Fred,white\n", "line 3");
+		assertError(".csv", "id,name\n1,Bella\n2,\"Fred\n", "line 3");
+		assertError(".csv", "", "has no header line");
+	}
+
+	@Test
+	public void testJsonLines () throws IOException {
+		DataSource source = DataSource.open(write(".jsonl", "\uFEFF{\"id\": 1, \"name\": \"Bella\\n\\u0041\"}\r\n\n{\"weight\": 1.5, \"tags\": [true, null], \"owner\": {\"name\": \"Mario\"}}\n"));
+		try {
+			assertEquals(row("id", 1L, "name", "Bella\nA"), source.next());
+			assertEquals(1, source.getLine());
+			Map<String, Object> owner = row("name", "Mario");
+			assertEquals(row("weight", 1.5, "tags", Arrays.asList(true, null), "owner", owner), source.next());
+			assertEquals(3, source.getLine());
+			assertNull(source.next());
+		} finally {
+			source.close();
+		}
+	}
+
+	@Test
+	public void testJsonLinesErrors () throws IOException {
+		assertError(".jsonl", "{\"id\": 1}\n\n{\"id\": }\n", "line 3");
+		assertError(".jsonl", "[1, 2]\n", "Expected a JSON object");
+		assertError(".jsonl", "{\"id\": 1} 2\n", "line 1");
+		assertError(".ndjson", "{\"name\": \"Bella}\n", "Unterminated JSON string");
+	}
+
+	@Test
+	public void testUnsupportedFormat () throws IOException {
+		assertError(".xml", "<ponies/>", "Unsupported data file");
+	}
+
+	private static Map<String, Object> row (Object... keysAndValues) {
+		Map<String, Object> row = new LinkedHashMap<String, Object>();
+		for (int i = 0; i < keysAndValues.length; i += 2)
+			row.put((String)keysAndValues[i], keysAndValues[i + 1]);
+		return row;
+	}
+
+	private static List<Map<String, Object>> readRows (String extension, String content) throws IOException {
+		List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+		DataSource source = DataSource.open(write(extension, content));
+		try {
+			Map<String, Object> row;
+			while ((row = source.next()) != null)
+				rows.add(row);
+		} finally {
+			source.close();
+		}
+		return rows;
+	}
+
+	private static void assertError (String extension, String content, String message) throws IOException {
+		try {
+			readRows(extension, content);
+			fail("Expected an error containing '" + message + "'.");
+		} catch (SiteGeneratorException e) {
+			assertTrue("Unexpected error: " + e.getMessage(), e.getMessage().contains(message));
+		}
+	}
+
+	private static File write (String extension, String content) throws IOException {
+		File file = Files.createTempFile("basis-site-data", extension).toFile();
+		file.deleteOnExit();
+		Files.write(file.toPath(), content.getBytes("UTF-8"));
+		return file;
+	}
+}
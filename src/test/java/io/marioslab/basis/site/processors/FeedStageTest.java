@@ -0,0 +1,105 @@
+
+package io.marioslab.basis.site.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Date;
+
+import org.junit.Test;
+
+import io.marioslab.basis.site.SiteFile;
+import io.marioslab.basis.site.SiteGenerator;
+import io.marioslab.basis.site.SiteGenerator.SiteGeneratorException;
+
+public class FeedStageTest {
+	private static final long DAY = 24 * 60 * 60 * 1000L;
+
+	@Test
+	public void testEntriesNewestFirst () throws IOException {
+		File output = Files.createTempDirectory("basis-site-feed").toFile();
+		SiteGenerator generator = new SiteGenerator(new File("input"), output);
+		FeedStage stage = new FeedStage("https://ponyhof.example.com/", "Ponyhof", "Bella", 2);
+		stage.begin(generator);
+		process(stage, page(output, "blog/second/index.html", "Second", 2 * DAY, "<body><p>Second post</p></body>"));
+		process(stage, page(output, "blog/first/index.html", "First", DAY, "<body><p>First post</p></body>"));
+		process(stage, page(output, "blog/third/index.html", "Third", 3 * DAY, "<body><p>Third post</p></body>"));
+		stage.end(generator);
+
+		String feed = SearchIndexStageTest.read(new File(output, "feed.xml"));
+		assertTrue(feed, feed.contains("  <updated>1970-01-04T00:00:00Z</updated>\n  <author><name>Bella</name></author>\n"));
+		int third = feed.indexOf("<title>Third</title>");
+		int second = feed.indexOf("<title>Second</title>");
+		assertTrue(feed, third > 0 && second > third);
+		assertFalse("Only the newest entries are kept", feed.contains("<title>First</title>"));
+	}
+
+	@Test
+	public void testEscapingAndSummaries () throws IOException {
+		File output = Files.createTempDirectory("basis-site-feed").toFile();
+		SiteGenerator generator = new SiteGenerator(new File("input"), output);
+		FeedStage stage = new FeedStage("https://ponyhof.example.com", "Ponies & <Horses>", "Bella \"the pony\"", 20);
+		stage.begin(generator);
+		SiteFile described = page(output, "a&b.html", "Hay & <oats>", DAY, "<body>Ignored</body>");
+		described.getMetadata().put("description", "Fred's \"favorite\"");
+		described.getMetadata().put("author", "Fred & Bella");
+		process(stage, described);
+		process(stage, page(output, "main.html", "Main", 2 * DAY,
+			"<html><body><nav>Home About</nav><main><h1>Main</h1><p>Ponies &amp; horses</p></main><footer>Footer</footer></body></html>"));
+		SiteFile unpublished = page(output, "draft.html", "Draft", 3 * DAY, "<body>Draft</body>");
+		unpublished.getMetadata().put("published", false);
+		process(stage, unpublished);
+		stage.end(generator);
+
+		assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" //
+			+ "<feed xmlns=\"http://www.w3.org/2005/Atom\">\n" //
+			+ "  <title>Ponies &amp; &lt;Horses&gt;</title>\n" //
+			+ "  <link href=\"https://ponyhof.example.com/\"/>\n" //
+			+ "  <link rel=\"self\" href=\"https://ponyhof.example.com/feed.xml\"/>\n" //
+			+ "  <id>https://ponyhof.example.com/</id>\n" //
+			+ "  <updated>1970-01-03T00:00:00Z</updated>\n" //
+			+ "  <author><name>Bella &quot;the pony&quot;</name></author>\n" //
+			+ "  <entry>\n" //
+			+ "    <title>Main</title>\n" //
+			+ "    <link href=\"https://ponyhof.example.com/main.html\"/>\n" //
+			+ "    <id>https://ponyhof.example.com/main.html</id>\n" //
+			+ "    <updated>1970-01-03T00:00:00Z</updated>\n" //
+			+ "    <summary>Main Ponies &amp; horses</summary>\n" //
+			+ "  </entry>\n" //
+			+ "  <entry>\n" //
+			+ "    <title>Hay &amp; &lt;oats&gt;</title>\n" //
+			+ "    <link href=\"https://ponyhof.example.com/a&amp;b.html\"/>\n" //
+			+ "    <id>https://ponyhof.example.com/a&amp;b.html</id>\n" //
+			+ "    <updated>1970-01-02T00:00:00Z</updated>\n" //
+			+ "    <author><name>Fred &amp; Bella</name></author>\n" //
+			+ "    <summary>Fred&#39;s &quot;favorite&quot;</summary>\n" //
+			+ "  </entry>\n" //
+			+ "</feed>\n", SearchIndexStageTest.read(new File(output, "feed.xml")));
+	}
+
+	@Test
+	public void testAuthorRequired () {
+		try {
+			new FeedStage("https://ponyhof.example.com/", "Ponyhof", " ", 20);
+			fail("Expected an error for a missing author.");
+		} catch (SiteGeneratorException e) {
+			// Expected
+		}
+	}
+
+	private static void process (FeedStage stage, SiteFile file) {
+		if (stage.accepts(file)) stage.process(file);
+	}
+
+	private static SiteFile page (File output, String path, String title, long date, String html) throws IOException {
+		SiteFile file = new SiteFile(new File(path), new File(output, path), html.getBytes("UTF-8"));
+		file.getMetadata().put("title", title);
+		file.getMetadata().put("date", new Date(date));
+		return file;
+	}
+}
@@ -0,0 +1,50 @@
+
+package io.marioslab.basis.site.processors;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import io.marioslab.basis.site.SiteFile;
+
+public class HighlightFileProcessorTest {
+	@Test
+	public void testHighlight () throws IOException {
+		HighlightFileProcessor processor = new HighlightFileProcessor(null);
+		assertEquals("<pre><code class=\"language-java\"><span class=\"hl-keyword\">return</span> <span class=\"hl-number\">1</span>;"
+			+ " <span class=\"hl-comment\">// &lt;one&gt;</span></code></pre>",
+			process(processor, "<pre><code class=\"language-java\">return 1; // &lt;one&gt;</code></pre>"));
+	}
+
+	@Test
+	public void testMemoryCacheIsBounded () throws IOException {
+		File cacheDirectory = Files.createTempDirectory("basis-site-highlight").toFile();
+		HighlightFileProcessor processor = new HighlightFileProcessor(cacheDirectory);
+		String first = "<pre><code class=\"language-java\">int first;</code></pre>";
+		String highlighted = process(processor, first);
+		StringBuilder others = new StringBuilder();
+		for (int i = 0; i < HighlightFileProcessor.MAX_CACHED_BLOCKS; i++)
+			others.append("<pre><code class=\"language-java\">int other").append(i).append(";</code></pre>");
+		process(processor, others.toString());
+
+		// The first code block has been evicted from memory, and is read from the cache directory again
+		File[] cacheFiles = cacheDirectory.listFiles();
+		assertEquals(HighlightFileProcessor.MAX_CACHED_BLOCKS + 1, cacheFiles.length);
+		for (File cacheFile : cacheFiles)
+			Files.write(cacheFile.toPath(), "cached".getBytes("UTF-8"));
+		assertEquals("<pre><code class=\"language-java\">cached</code></pre>", process(processor, first));
+		// Recently used code blocks are still in memory
+		String last = "other" + (HighlightFileProcessor.MAX_CACHED_BLOCKS - 1);
+		assertEquals(highlighted.replace("first", last), process(processor, first.replace("first", last)));
+	}
+
+	private static String process (HighlightFileProcessor processor, String html) throws IOException {
+		SiteFile file = new SiteFile(new File("page.html"), new File("output/page.html"), html.getBytes("UTF-8"));
+		processor.process(file);
+		return new String(file.getContent(), "UTF-8");
+	}
+}
@@ -0,0 +1,70 @@
+
+package io.marioslab.basis.site.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import io.marioslab.basis.site.SiteFile;
+import io.marioslab.basis.site.SiteGenerator;
+
+public class SearchIndexStageTest {
+	@Test
+	public void testTokenize () {
+		assertEquals(Arrays.asList("hello", "world", "it", "2019"),
+			new ArrayList<String>(SearchIndexStage.tokenize("Hello, WORLD! hello world. It's a 2019 x")));
+	}
+
+	@Test
+	public void testTokenizeUnicode () {
+		assertEquals(Arrays.asList("über", "straße", "日本語"), new ArrayList<String>(SearchIndexStage.tokenize("Über-Straße 日本語")));
+	}
+
+	@Test
+	public void testTokenizeSkipsLongTokens () {
+		String longToken = new String(new char[33]).replace('\0', 'a');
+		String maxToken = new String(new char[32]).replace('\0', 'b');
+		assertEquals(Arrays.asList(maxToken, "ok"), new ArrayList<String>(SearchIndexStage.tokenize(longToken + " " + maxToken + " ok")));
+	}
+
+	@Test
+	public void testShardNames () {
+		SearchIndexStage stage = new SearchIndexStage("search", 2);
+		assertEquals("ab", stage.getShardName("abc"));
+		assertEquals("x", stage.getShardName("x"));
+		assertEquals("_fcb", stage.getShardName("über"));
+		assertEquals("9_2d", stage.getShardName("9-"));
+	}
+
+	@Test
+	public void testIndex () throws IOException {
+		File output = Files.createTempDirectory("basis-site-search").toFile();
+		SiteGenerator generator = new SiteGenerator(new File("input"), output);
+		SearchIndexStage stage = new SearchIndexStage();
+		stage.begin(generator);
+		stage.process(page(output, "index.html", "<title>Home</title><body>Ponies &amp; \"horses\"</body>"));
+		stage.process(page(output, "blog/pony/index.html", "<body><script>var horses;</script>Ponies</body>"));
+		stage.end(generator);
+
+		assertEquals("{\"prefixLength\":2,\"documents\":[[\"\",\"Home\"],[\"blog/pony/\",\"\"]],\"shards\":[\"ho\",\"po\"]}",
+			read(new File(output, "search/index.json")));
+		assertEquals("{\"home\":[0],\"horses\":[0]}", read(new File(output, "search/ho.json")));
+		assertEquals("{\"ponies\":[0,1]}", read(new File(output, "search/po.json")));
+		assertFalse(new File(output, "search/va.json").exists());
+	}
+
+	private static SiteFile page (File output, String path, String html) throws IOException {
+		return new SiteFile(new File(path), new File(output, path), html.getBytes("UTF-8"));
+	}
+
+	static String read (File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), "UTF-8");
+	}
+}
@@ -0,0 +1,49 @@
+
+package io.marioslab.basis.site.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.junit.Test;
+
+import io.marioslab.basis.site.SiteFile;
+import io.marioslab.basis.site.SiteGenerator;
+
+public class SitemapStageTest {
+	@Test
+	public void testSitemap () throws IOException {
+		File input = Files.createTempDirectory("basis-site-sitemap-input").toFile();
+		File output = Files.createTempDirectory("basis-site-sitemap").toFile();
+		File page = new File(input, "index.bt.html");
+		Files.write(page.toPath(), new byte[0]);
+		long lastModified = 1588766400000L;
+		assertTrue(page.setLastModified(lastModified));
+
+		SiteGenerator generator = new SiteGenerator(input, output);
+		SitemapStage stage = new SitemapStage("https://ponyhof.example.com");
+		stage.begin(generator);
+		SiteFile index = new SiteFile(page, new File(output, "index.html"), new byte[0]);
+		SiteFile query = new SiteFile(page, new File(output, "search/a&b's <page>.html"), new byte[0]);
+		SiteFile unpublished = new SiteFile(page, new File(output, "draft.html"), new byte[0]);
+		unpublished.getMetadata().put("published", false);
+		for (SiteFile file : new SiteFile[] {index, query, unpublished, new SiteFile(page, new File(output, "style.css"), new byte[0])}) {
+			if (stage.accepts(file)) stage.process(file);
+		}
+		stage.end(generator);
+
+		String date = new SimpleDateFormat("yyyy-MM-dd").format(new Date(lastModified));
+		assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" //
+			+ "<urlset xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">\n" //
+			+ "  <url><loc>https://ponyhof.example.com/</loc><lastmod>" + date + "</lastmod></url>\n" //
+			+ "  <url><loc>https://ponyhof.example.com/search/a&amp;b&#39;s &lt;page&gt;.html</loc><lastmod>" + date + "</lastmod></url>\n" //
+			+ "</urlset>\n", SearchIndexStageTest.read(new File(output, "sitemap.xml")));
+		assertFalse(stage.accepts(unpublished));
+	}
+}
@@ -0,0 +1,30 @@
+
+package io.marioslab.basis.site.processors;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import io.marioslab.basis.site.SiteGenerator;
+import io.marioslab.basis.site.SiteGenerator.SiteGeneratorException;
+
+public class TemplateFileProcessorTest {
+	@Test
+	public void testSharingRejected () {
+		TemplateFileProcessor processor = new TemplateFileProcessor(Collections.emptyList(), new TemplateCache());
+		SiteGenerator en = new SiteGenerator(new File("input"), new File("output/en"));
+		SiteGenerator de = new SiteGenerator(new File("input"), new File("output/de"));
+		processor.buildStarted(en);
+		processor.buildStarted(en);
+		try {
+			processor.buildStarted(de);
+			fail("Expected sharing the processor to fail.");
+		} catch (SiteGeneratorException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("can't be shared"));
+		}
+	}
+}